@@ -1,3 +1,4 @@
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class BootstrapUI implements Runnable {
@@ -5,10 +6,12 @@ public class BootstrapUI implements Runnable {
 
     private BootstrapNameServer bootstrapServer;
     private Scanner scan;
+    private boolean trace; // Track visited servers on requests sent from the UI
 
     public BootstrapUI(BootstrapNameServer bootstrapServer, int bootstrapID) {
         this.bootstrapServer = bootstrapServer;
         scan = new Scanner(System.in);
+        trace = true;
         PROMPT = "bootstrap [" + bootstrapID + "] >_ ";
     }
 
@@ -37,19 +40,20 @@ public class BootstrapUI implements Runnable {
 
     private boolean readUserInput() {
         syncPrint(PROMPT);
-        String[] input = scan.nextLine().split(" ");
+        // Values are the rest of the line, spaces included
+        String[] input = scan.nextLine().split(" ", 3);
         String command = input[0].toLowerCase();
 
         if (command.equals("quit")) {
-            bootstrapServer.shutdown();
-            return false;
+            // Keeps reading commands if the keys could not be handed off
+            return !bootstrapServer.shutdown();
         } else if (command.equals("lookup")) {
             if (input.length != 2) {
                 syncPrint("[ERROR] lookup <key>\n");
             } else {
                 int key = Integer.parseInt(input[1]);
 
-                String message = bootstrapServer.lookupKey(key);
+                String message = bootstrapServer.lookupKey(key, trace);
                 if (message != null) syncPrint(message + "\n");
             }
         } else if (command.equals("insert")) {
@@ -57,9 +61,9 @@ public class BootstrapUI implements Runnable {
                 syncPrint("[ERROR] insert <key> <value>\n");
             } else {
                 int key = Integer.parseInt(input[1]);
-                String value = input[2];
+                byte[] value = input[2].getBytes(StandardCharsets.UTF_8);
 
-                String message = bootstrapServer.insertValue(key, value);
+                String message = bootstrapServer.insertValue(key, value, trace);
                 if (message != null) syncPrint(message + "\n");
             }
         } else if (command.equals("delete")) {
@@ -68,9 +72,34 @@ public class BootstrapUI implements Runnable {
             } else {
                 int key = Integer.parseInt(input[1]);
 
-                String message = bootstrapServer.deleteKey(key);
+                String message = bootstrapServer.deleteKey(key, trace);
                 if (message != null) syncPrint(message + "\n");
             }
+        } else if (command.equals("rlookup")) {
+            if (input.length < 2) {
+                syncPrint("[ERROR] rlookup <value>\n");
+            } else {
+                String text = input.length == 3 ? input[1] + " " + input[2] : input[1];
+                byte[] value = text.getBytes(StandardCharsets.UTF_8);
+
+                String message = bootstrapServer.lookupValue(value, trace);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("stats")) {
+            syncPrint(bootstrapServer.ringStats());
+        } else if (command.equals("load")) {
+            if (input.length != 2) {
+                syncPrint("[ERROR] load <file>\n");
+            } else {
+                String message = bootstrapServer.loadFile(input[1]);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("trace")) {
+            if (input.length != 2 || !(input[1].equals("on") || input[1].equals("off"))) {
+                syncPrint("[ERROR] trace <on|off>\n");
+            } else {
+                trace = input[1].equals("on");
+            }
         } else {
             syncPrint("[ERROR] Unknown command.\n");
         }
@@ -0,0 +1,58 @@
+import java.util.function.Consumer;
+
+/*
+ * A server that clients connected to its client port can send requests through.
+ */
+public interface ClientRequestHandler {
+
+    /*
+     * Sends a lookup, insert, delete, cas or renew request into the system. Value can be
+     * null if not needed for the command; a cas without a value deletes the key. Version
+     * is the version a cas expects the key's value to be at (0 for a key not stored),
+     * other commands ignore it. Ttl is how many milliseconds the lease of an insert or
+     * renew lasts (0 for an insert without a lease). onReply is called with the reply
+     * once it arrives, possibly before this method returns if the key is stored on this
+     * server.
+     *
+     * Returns an error message if the request could not be sent, null otherwise.
+     */
+    String submitRequest(String command, int key, byte[] value, long version, long ttl, boolean traced,
+                         Consumer<Message> onReply);
+
+    /*
+     * Sends a reverse lookup for the keys holding the value into the system. onReply is
+     * called with an "rlookup_found" reply carrying the keys (see ReverseIndex.decodeKeys),
+     * or "rlookup" if none were found.
+     *
+     * Returns an error message if the request could not be sent, null otherwise.
+     */
+    String reverseLookup(byte[] value, Consumer<Message> onReply);
+
+    /*
+     * Gathers the stats of every server in the ring and calls onReport with them, as
+     * "name:value" lines (see RingStats.report).
+     *
+     * Returns an error message if the stats could not be gathered, null otherwise.
+     */
+    String ringStats(Consumer<String> onReport);
+
+    /*
+     * Watches keys [firstKey, lastKey] under watchID, which the caller picks. onChange is
+     * called with a "watch_event" message for every insert or delete of a watched key,
+     * carrying the new value or none if the key was deleted. The watch follows its keys
+     * when their range moves to another server.
+     *
+     * Returns an error message if the watch could not be registered, null otherwise.
+     */
+    String watch(int watchID, int firstKey, int lastKey, Consumer<Message> onChange);
+
+    /*
+     * Stops calling the watch's onChange. Returns false if no such watch is registered.
+     */
+    boolean unwatch(int watchID);
+
+    /*
+     * Returns this server's log of the changes in its range, for clients to follow.
+     */
+    ChangeLog changeLog();
+}
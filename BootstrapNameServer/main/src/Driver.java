@@ -1,7 +1,8 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.TreeMap;
 
 public class Driver {
     public static void main(String[] args) throws IOException {
@@ -11,18 +12,33 @@ public class Driver {
         int bootstrapID = Integer.parseInt(configScanner.nextLine());
         int bootstrapPort = Integer.parseInt(configScanner.nextLine());
 
-        // Collect initial objects
-        TreeMap<Integer, String> objects = new TreeMap<>();
-        while (configScanner.hasNextLine()) {
-            String[] line = configScanner.nextLine().split(" ");
-            int key = Integer.parseInt(line[0]);
-            String value = line[1];
-            objects.put(key, value);
+        // Optional flags: values are kept on the heap unless "offheap" or "disk" is given,
+        // only published to the reverse index with "index", and lookups are hedged with "hedge"
+        List<String> flags = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : List.of();
+        ObjectStore objects;
+        if (flags.contains("disk")) {
+            objects = new LsmObjectStore(BootstrapNameServer.MAX_OBJECT_AMOUNT);
+        } else if (flags.contains("offheap")) {
+            objects = new OffHeapObjectStore(BootstrapNameServer.MAX_OBJECT_AMOUNT);
+        } else {
+            objects = new HeapObjectStore();
         }
 
         configScanner.close();
 
-        BootstrapNameServer bootstrap = new BootstrapNameServer(bootstrapID, bootstrapPort, objects);
+        // Collect initial objects, the lines after the two above (parsed in parallel)
+        byte[][] values = BulkLoader.parse(config.toPath(), 2, BootstrapNameServer.MAX_OBJECT_AMOUNT);
+        for (int key = 0; key < values.length; key++) {
+            if (values[key] != null) {
+                objects.put(key, VersionedValue.record(VersionedValue.nextVersion(null), values[key]));
+            }
+        }
+
+        // Optional port for remote clients
+        int clientPort = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+        BootstrapNameServer bootstrap = new BootstrapNameServer(bootstrapID, bootstrapPort, clientPort, objects,
+                flags.contains("index"), flags.contains("hedge"));
         new Thread(bootstrap).start();
     }
 }
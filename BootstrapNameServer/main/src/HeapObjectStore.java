@@ -0,0 +1,89 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Keeps values as byte arrays in a sorted map on the heap. Default storage mode.
+ */
+public class HeapObjectStore implements ObjectStore {
+
+    private final ConcurrentSkipListMap<Integer, byte[]> objects = new ConcurrentSkipListMap<>();
+
+    @Override
+    public byte[] get(int key) {
+        return objects.get(key);
+    }
+
+    @Override
+    public void put(int key, byte[] value) {
+        objects.put(key, value);
+    }
+
+    @Override
+    public boolean remove(int key) {
+        return objects.remove(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return objects.size();
+    }
+
+    /*
+     * Returns the range as sub-map views, split in two if it wraps around past the
+     * highest key.
+     */
+    private List<NavigableMap<Integer, byte[]>> storedRange(int rangeStart, int rangeEnd) {
+        if (rangeStart < rangeEnd) {
+            return List.of(objects.subMap(rangeStart, false, rangeEnd, true));
+        }
+
+        // Range wraps around past the highest key
+        return List.of(objects.tailMap(rangeStart, false), objects.headMap(rangeEnd, true));
+    }
+
+    @Override
+    public void writeRange(DataOutput out, int rangeStart, int rangeEnd) throws IOException {
+        // Copied first so the count matches the entries written
+        List<Map.Entry<Integer, byte[]>> entries = new ArrayList<>();
+        for (NavigableMap<Integer, byte[]> range : storedRange(rangeStart, rangeEnd)) {
+            entries.addAll(range.entrySet());
+        }
+
+        out.writeInt(entries.size());
+        for (Map.Entry<Integer, byte[]> entry : entries) {
+            byte[] value = entry.getValue();
+            out.writeInt(entry.getKey());
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    @Override
+    public void removeRange(int rangeStart, int rangeEnd) {
+        for (NavigableMap<Integer, byte[]> range : storedRange(rangeStart, rangeEnd)) {
+            range.clear();
+        }
+    }
+
+    @Override
+    public void readEntries(DataInput in, EntryListener listener) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int key = in.readInt();
+            int length = in.readInt();
+            listener.start(key, length);
+
+            byte[] value = new byte[length];
+            in.readFully(value);
+            objects.put(key, value);
+            listener.bytes(value, 0, length);
+            listener.end();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+ * Append-only list of the server IDs a request has passed through. Only carried by
+ * requests that were sent with tracing enabled; untraced requests carry a single
+ * marker short instead.
+ *
+ * Wire format: short length (-1 when untraced), followed by one short per visited ID.
+ * IDs always fit in a short since they are between [0, MAX_OBJECT_AMOUNT).
+ */
+public class HopTrace {
+
+    private static final short UNTRACED = -1;
+
+    // Spare room reserved whenever a trace is created or read, so the appends made by
+    // the next few hops write into the existing array.
+    private static final int HEADROOM = 8;
+
+    private short[] ids;
+    private int length;
+
+    public HopTrace(int firstID) {
+        this.ids = new short[HEADROOM];
+        this.ids[0] = (short) firstID;
+        this.length = 1;
+    }
+
+    private HopTrace(short[] ids, int length) {
+        this.ids = ids;
+        this.length = length;
+    }
+
+    /*
+     * Appends a server ID in place; the backing array only grows (doubling) once its
+     * headroom is used up.
+     */
+    public void append(int id) {
+        if (length == ids.length) {
+            short[] grown = new short[ids.length * 2];
+            System.arraycopy(ids, 0, grown, 0, length);
+            ids = grown;
+        }
+        ids[length++] = (short) id;
+    }
+
+    public int last() {
+        return ids[length - 1];
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /*
+     * Writes a trace, or the untraced marker if trace is null.
+     */
+    public static void write(HopTrace trace, DataOutput out) throws IOException {
+        if (trace == null) {
+            out.writeShort(UNTRACED);
+            return;
+        }
+
+        out.writeShort(trace.length);
+        for (int i = 0; i < trace.length; i++) {
+            out.writeShort(trace.ids[i]);
+        }
+    }
+
+    /*
+     * Reads a trace, returns null if the request was sent untraced.
+     */
+    public static HopTrace read(DataInput in) throws IOException {
+        int length = in.readShort();
+        if (length == UNTRACED) {
+            return null;
+        }
+
+        short[] ids = new short[length + HEADROOM];
+        for (int i = 0; i < length; i++) {
+            ids[i] = in.readShort();
+        }
+        return new HopTrace(ids, length);
+    }
+
+    /*
+     * Returns a space separated String of the visited IDs.
+     */
+    @Override
+    public String toString() {
+        StringBuilder visitedString = new StringBuilder(length * 4);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) visitedString.append(' ');
+            visitedString.append(ids[i]);
+        }
+        return visitedString.toString();
+    }
+}
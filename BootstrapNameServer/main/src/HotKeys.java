@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
+/*
+ * The most requested keys of a server, or of the whole ring, with their request counts.
+ *
+ * Counts come from the per-key request counters servers already keep for rebalancing,
+ * which are halved on every range check, so they reflect recent traffic. Keys are picked
+ * with a min-heap of the k largest seen so far, without sorting every key.
+ */
+public class HotKeys {
+
+    private final int[] keys;
+    private final int[] counts;
+
+    private HotKeys(int[] keys, int[] counts) {
+        this.keys = keys;
+        this.counts = counts;
+    }
+
+    /*
+     * Returns the k keys with the highest counts among the owned ones, hottest first.
+     * Keys never requested are left out.
+     */
+    public static HotKeys top(AtomicIntegerArray requestCounts, IntPredicate owned, int k) {
+        PriorityQueue<int[]> heap = new PriorityQueue<>(k + 1, (a, b) -> Integer.compare(a[1], b[1]));
+        for (int key = 0; key < requestCounts.length(); key++) {
+            int count = requestCounts.get(key);
+            if (count == 0 || !owned.test(key)) continue;
+            if (heap.size() < k) {
+                heap.add(new int[] {key, count});
+            } else if (count > heap.peek()[1]) {
+                heap.poll();
+                heap.add(new int[] {key, count});
+            }
+        }
+        return fromHeap(heap);
+    }
+
+    /*
+     * Returns the k hottest keys of several servers. Servers own disjoint ranges, so a
+     * key's count comes from a single server.
+     */
+    public static HotKeys merge(Collection<HotKeys> servers, int k) {
+        PriorityQueue<int[]> heap = new PriorityQueue<>(k + 1, (a, b) -> Integer.compare(a[1], b[1]));
+        for (HotKeys hot : servers) {
+            for (int i = 0; i < hot.keys.length; i++) {
+                heap.add(new int[] {hot.keys[i], hot.counts[i]});
+                if (heap.size() > k) heap.poll();
+            }
+        }
+        return fromHeap(heap);
+    }
+
+    private static HotKeys fromHeap(PriorityQueue<int[]> heap) {
+        int[] keys = new int[heap.size()];
+        int[] counts = new int[heap.size()];
+        for (int i = keys.length - 1; i >= 0; i--) {
+            int[] entry = heap.poll();
+            keys[i] = entry[0];
+            counts[i] = entry[1];
+        }
+        return new HotKeys(keys, counts);
+    }
+
+    public void write(ObjectOutputStream out) throws IOException {
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeInt(keys[i]);
+            out.writeInt(counts[i]);
+        }
+    }
+
+    public static HotKeys read(ObjectInputStream in) throws IOException {
+        int amount = in.readInt();
+        int[] keys = new int[amount];
+        int[] counts = new int[amount];
+        for (int i = 0; i < amount; i++) {
+            keys[i] = in.readInt();
+            counts[i] = in.readInt();
+        }
+        return new HotKeys(keys, counts);
+    }
+
+    /*
+     * Returns "key=count" pairs separated by commas, hottest first, or "-" if there are none.
+     */
+    @Override
+    public String toString() {
+        if (keys.length == 0) {
+            return "-";
+        }
+
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            pairs.add(keys[i] + "=" + counts[i]);
+        }
+        return String.join(",", pairs);
+    }
+}
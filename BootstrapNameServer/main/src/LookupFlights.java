@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * Lookups sent around the ring by this server, at most one per key, so concurrent lookups
+ * for a hot key share a single request and all complete from its reply. Lookups only
+ * passing through this server on their way to the key's owner can join a flight as well,
+ * they are then answered from here instead of by the owner.
+ *
+ * A flight is only joined within maxAgeMillis of being sent, in case its reply was lost.
+ * Writes sent through this server end the key's flight for later lookups, so a lookup
+ * sent after a write is never answered with a value read before it.
+ */
+public class LookupFlights {
+
+    private final long maxAgeMillis;
+    private final Flight[] flights; // null if no lookup for the key is in flight
+
+    private static class Flight {
+        private final long sentAt = System.currentTimeMillis();
+        private final List<Consumer<Message>> waiters = new ArrayList<>();
+    }
+
+    public LookupFlights(int keyAmount, long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.flights = new Flight[keyAmount];
+    }
+
+    /*
+     * Adds onReply to the key's flight, starting a new one if there is none. Returns the
+     * reply handler of the new flight's lookup, which the caller sends, or null if a
+     * lookup already in flight will complete onReply.
+     */
+    public synchronized Consumer<Message> join(int key, Consumer<Message> onReply) {
+        if (attach(key, onReply)) {
+            return null;
+        }
+
+        Flight flight = new Flight();
+        flight.waiters.add(onReply);
+        flights[key] = flight;
+        return reply -> complete(key, flight, reply);
+    }
+
+    /*
+     * Adds onReply to the key's flight. Returns false if no lookup for the key is in
+     * flight.
+     */
+    public synchronized boolean attach(int key, Consumer<Message> onReply) {
+        Flight flight = flights[key];
+        if (flight == null || System.currentTimeMillis() - flight.sentAt > maxAgeMillis) {
+            return false;
+        }
+
+        flight.waiters.add(onReply);
+        return true;
+    }
+
+    /*
+     * Lookups after this start a new flight, the current one still completes its waiters.
+     */
+    public synchronized void detach(int key) {
+        flights[key] = null;
+    }
+
+    private void complete(int key, Flight flight, Message reply) {
+        List<Consumer<Message>> waiters;
+        synchronized (this) {
+            // No waiters are added once the flight is detached
+            if (flights[key] == flight) flights[key] = null;
+            waiters = flight.waiters;
+        }
+
+        for (Consumer<Message> waiter : waiters) {
+            waiter.accept(reply);
+        }
+    }
+}
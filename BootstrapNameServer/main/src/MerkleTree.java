@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Hash tree over the key space, one leaf per key, kept up to date as values are stored
+ * and removed (see MerkleObjectStore). Two servers can find the keys they disagree on
+ * over a range by comparing hashes top down, only descending into subtrees that differ.
+ *
+ * Nodes are kept heap style in one array: node 1 is the root, node i has children 2i and
+ * 2i + 1, and the leaves start at index `leaves`. A missing key hashes to 0 and so does
+ * any subtree without keys, so empty parts of the range cost nothing to compare.
+ */
+public class MerkleTree {
+
+    private final int keyAmount;
+    private final int leaves;
+    private final long[] nodes;
+
+    public MerkleTree(int keyAmount) {
+        int leaves = 1;
+        while (leaves < keyAmount) {
+            leaves *= 2;
+        }
+
+        this.keyAmount = keyAmount;
+        this.leaves = leaves;
+        this.nodes = new long[2 * leaves];
+    }
+
+    /*
+     * Updates a key's leaf and the hashes above it. Value is null if the key was removed.
+     */
+    public void update(int key, byte[] value) {
+        if (value == null) {
+            setLeaf(key, 0);
+        } else {
+            updateHashed(key, leafHash(leafHash(key), value, 0, value.length));
+        }
+    }
+
+    /*
+     * Updates a stored key's leaf with a hash worked out as its value streamed by, with
+     * leafHash(key) followed by leafHash(hash, bytes...) over each part of the value.
+     */
+    public void updateHashed(int key, long hash) {
+        setLeaf(key, hash != 0 ? hash : 1);
+    }
+
+    private synchronized void setLeaf(int key, long hash) {
+        int node = leaves + key;
+        nodes[node] = hash;
+
+        for (node /= 2; node >= 1; node /= 2) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    public synchronized long hash(int node) {
+        return nodes[node];
+    }
+
+    /*
+     * Returns true if any key in the (exclusive, inclusive) range is stored.
+     */
+    public synchronized boolean hasKeys(int rangeStart, int rangeEnd) {
+        for (int node : cover(rangeStart, rangeEnd)) {
+            if (nodes[node] != 0) return true;
+        }
+        return false;
+    }
+
+    /*
+     * Returns the stored keys in the (exclusive, inclusive) range.
+     */
+    public synchronized List<Integer> keys(int rangeStart, int rangeEnd) {
+        List<Integer> keys = new ArrayList<>();
+        List<Integer> pending = cover(rangeStart, rangeEnd);
+
+        while (!pending.isEmpty()) {
+            List<Integer> next = new ArrayList<>();
+            for (int node : pending) {
+                if (nodes[node] == 0) continue;
+
+                if (node >= leaves) {
+                    keys.add(node - leaves);
+                } else {
+                    next.add(2 * node);
+                    next.add(2 * node + 1);
+                }
+            }
+            pending = next;
+        }
+
+        return keys;
+    }
+
+    /*
+     * Finds the keys in the (exclusive, inclusive) range whose hashes differ from the
+     * other server's tree, which answers with answerDivergence(). Only subtrees holding
+     * keys on this side are sent, one level per round trip.
+     */
+    public List<Integer> divergentKeys(int rangeStart, int rangeEnd, ObjectOutputStream out, ObjectInputStream in)
+            throws IOException {
+        List<Integer> divergent = new ArrayList<>();
+        List<Integer> pending = nonEmpty(cover(rangeStart, rangeEnd));
+
+        while (true) {
+            out.writeInt(pending.size());
+            for (int node : pending) {
+                out.writeInt(node);
+                out.writeLong(hash(node));
+            }
+            out.flush();
+
+            if (pending.isEmpty()) {
+                return divergent;
+            }
+
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0, n = in.readInt(); i < n; i++) {
+                int node = in.readInt();
+                if (node >= leaves) {
+                    divergent.add(node - leaves);
+                } else {
+                    next.add(2 * node);
+                    next.add(2 * node + 1);
+                }
+            }
+            pending = nonEmpty(next);
+        }
+    }
+
+    /*
+     * Answers divergentKeys() from another server, replying each round with the nodes
+     * whose hashes differ from this tree's.
+     */
+    public void answerDivergence(ObjectOutputStream out, ObjectInputStream in) throws IOException {
+        while (true) {
+            int count = in.readInt();
+            if (count == 0) {
+                return;
+            }
+
+            List<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int node = in.readInt();
+                long hash = in.readLong();
+                if (node < 1 || node >= nodes.length) {
+                    throw new IOException("Merkle node " + node + " out of range.");
+                }
+                if (hash(node) != hash) differing.add(node);
+            }
+
+            out.writeInt(differing.size());
+            for (int node : differing) {
+                out.writeInt(node);
+            }
+            out.flush();
+        }
+    }
+
+    private synchronized List<Integer> nonEmpty(List<Integer> candidates) {
+        List<Integer> nonEmpty = new ArrayList<>();
+        for (int node : candidates) {
+            if (nodes[node] != 0) nonEmpty.add(node);
+        }
+        return nonEmpty;
+    }
+
+    /*
+     * Returns the fewest nodes that together hold exactly the keys in the (exclusive,
+     * inclusive) range, which wraps around past the highest key if the end comes first.
+     * Both ends the same means the whole key space.
+     */
+    private List<Integer> cover(int rangeStart, int rangeEnd) {
+        List<Integer> cover = new ArrayList<>();
+        int first = (rangeStart + 1) % keyAmount;
+
+        if (rangeStart == rangeEnd) {
+            cover(1, 0, leaves - 1, 0, keyAmount - 1, cover);
+        } else if (first <= rangeEnd) {
+            cover(1, 0, leaves - 1, first, rangeEnd, cover);
+        } else {
+            // Range wraps around past the highest key
+            cover(1, 0, leaves - 1, first, keyAmount - 1, cover);
+            cover(1, 0, leaves - 1, 0, rangeEnd, cover);
+        }
+        return cover;
+    }
+
+    /*
+     * Adds the nodes under node (which holds keys [nodeFirst, nodeLast]) that hold keys
+     * in [first, last].
+     */
+    private void cover(int node, int nodeFirst, int nodeLast, int first, int last, List<Integer> cover) {
+        if (last < nodeFirst || first > nodeLast) {
+            return;
+        }
+        if (first <= nodeFirst && nodeLast <= last) {
+            cover.add(node);
+            return;
+        }
+
+        int middle = (nodeFirst + nodeLast) / 2;
+        cover(2 * node, nodeFirst, middle, first, last, cover);
+        cover(2 * node + 1, middle + 1, nodeLast, first, last, cover);
+    }
+
+    /*
+     * Leaves hash the key and then the value with FNV-1a, which can be worked out a part
+     * of the value at a time. A stored key's leaf is never 0 so it is told apart from a
+     * missing one.
+     */
+    public static long leafHash(int key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((key >>> shift) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static long leafHash(long hash, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /*
+     * Combines two child hashes, 0 only if both subtrees are empty.
+     */
+    private static long combine(long left, long right) {
+        if (left == 0 && right == 0) {
+            return 0;
+        }
+
+        // splitmix64 finalizer
+        long hash = left * 0x9e3779b97f4a7c15L + right;
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        hash ^= hash >>> 31;
+        return hash != 0 ? hash : 1;
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/*
+ * A lookup/insert/delete request, or the reply to one, as it is passed between servers.
+ *
+ * Requests carry the address of the server they entered the system through along with
+ * a request ID chosen by that server. The server that owns the key replies straight to
+ * that address, and the entry server uses the request ID to match the reply to the
+ * request it sent out.
+ *
+ * Wire format (after the command, which is read by the accepting server):
+ *   int request ID | address length + address bytes | int reply port | int key |
+ *   int server ID | long version | long ttl | hop trace |
+ *   int value length (-1 if none) + value bytes
+ *
+ * Values are arbitrary bytes and always come last. Values longer than STREAM_THRESHOLD
+ * are not read by read(); the payload is left on the connection so a server that only
+ * passes the message on can relay it in chunks without holding the whole value.
+ */
+public class Message {
+
+    public static final int STREAM_THRESHOLD = 64 * 1024;
+
+    // Buffer size used when relaying or reading a streamed payload
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String command;
+    private final int requestID;
+    private final InetAddress replyAddr;
+    private final int replyPort;
+    private final int key;
+    private final byte[] value; // null if there is no value or it is still streamed
+    private final int valueLength; // -1 if there is no value
+    private final int serverID; // ID of the server that sent a reply, -1 for requests
+    private final long version; // Version a cas expects, or of the key's value in a reply; 0 if none
+    private final long ttl; // Milliseconds the lease an insert or renew asks for lasts; 0 if none
+    private final HopTrace trace;
+
+    public Message(String command, int requestID, InetAddress replyAddr, int replyPort, int key, byte[] value,
+                   HopTrace trace) {
+        this(command, requestID, replyAddr, replyPort, key, value, 0, trace);
+    }
+
+    public Message(String command, int requestID, InetAddress replyAddr, int replyPort, int key, byte[] value,
+                   long version, HopTrace trace) {
+        this(command, requestID, replyAddr, replyPort, key, value, version, 0, trace);
+    }
+
+    public Message(String command, int requestID, InetAddress replyAddr, int replyPort, int key, byte[] value,
+                   long version, long ttl, HopTrace trace) {
+        this(command, requestID, replyAddr, replyPort, key, value, value != null ? value.length : -1, -1, version,
+                ttl, trace);
+    }
+
+    private Message(String command, int requestID, InetAddress replyAddr, int replyPort, int key, byte[] value,
+                    int valueLength, int serverID, long version, long ttl, HopTrace trace) {
+        this.command = command;
+        this.requestID = requestID;
+        this.replyAddr = replyAddr;
+        this.replyPort = replyPort;
+        this.key = key;
+        this.value = value;
+        this.valueLength = valueLength;
+        this.serverID = serverID;
+        this.version = version;
+        this.ttl = ttl;
+        this.trace = trace;
+    }
+
+    /*
+     * Builds the reply to this request, sent by the given server. Value can be null if
+     * not needed for the reply.
+     */
+    public Message reply(String replyCommand, int serverID, byte[] value) {
+        return reply(replyCommand, serverID, value, 0);
+    }
+
+    /*
+     * Builds the reply to this request, carrying the version of the key's value.
+     */
+    public Message reply(String replyCommand, int serverID, byte[] value, long version) {
+        return new Message(replyCommand, requestID, replyAddr, replyPort, key, value,
+                value != null ? value.length : -1, serverID, version, 0, trace);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getRequestID() {
+        return requestID;
+    }
+
+    public InetAddress getReplyAddr() {
+        return replyAddr;
+    }
+
+    public int getReplyPort() {
+        return replyPort;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    /*
+     * Returns the value, null if there is none or it has not been read off the
+     * connection yet (see isStreamed()).
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /*
+     * Returns true if the value's payload is still on the connection the message was read
+     * from, and has to be read with readPayload() or passed on with relay().
+     */
+    public boolean isStreamed() {
+        return value == null && valueLength >= 0;
+    }
+
+    public int getServerID() {
+        return serverID;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /*
+     * Returns the hop trace, null if the request is not being traced.
+     */
+    public HopTrace getTrace() {
+        return trace;
+    }
+
+    /*
+     * Writes the command followed by the message body. Only the value's length is
+     * written for a streamed message, relay() writes its payload.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(command);
+        out.writeInt(requestID);
+        byte[] addr = replyAddr.getAddress();
+        out.writeByte(addr.length);
+        out.write(addr);
+        out.writeInt(replyPort);
+        out.writeInt(key);
+        out.writeInt(serverID);
+        out.writeLong(version);
+        out.writeLong(ttl);
+        HopTrace.write(trace, out);
+        out.writeInt(valueLength);
+        if (value != null) out.write(value);
+    }
+
+    /*
+     * Writes a streamed message to out, copying its payload from in one chunk at a time.
+     * Links between servers are object streams, which frame bytes in blocks of their own,
+     * so the payload has to pass through the chunk rather than go socket to socket with
+     * transferTo; only the chunk is ever held, never the whole value.
+     */
+    public void relay(DataInput in, DataOutput out) throws IOException {
+        write(out);
+
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, valueLength)];
+        for (int copied = 0; copied < valueLength; ) {
+            int length = Math.min(chunk.length, valueLength - copied);
+            in.readFully(chunk, 0, length);
+            out.write(chunk, 0, length);
+            copied += length;
+        }
+    }
+
+    /*
+     * Reads a streamed message's payload and returns the message with its value.
+     */
+    public Message readPayload(DataInput in) throws IOException {
+        byte[] payload = new byte[valueLength];
+        in.readFully(payload);
+        return new Message(command, requestID, replyAddr, replyPort, key, payload, valueLength, serverID, version,
+                ttl, trace);
+    }
+
+    /*
+     * Reads a message body; the command has already been read by the caller. Values
+     * longer than STREAM_THRESHOLD are left on the connection.
+     */
+    public static Message read(String command, DataInput in) throws IOException {
+        int requestID = in.readInt();
+        byte[] addr = new byte[in.readByte()];
+        in.readFully(addr);
+        InetAddress replyAddr = InetAddress.getByAddress(addr);
+        int replyPort = in.readInt();
+        int key = in.readInt();
+        int serverID = in.readInt();
+        long version = in.readLong();
+        long ttl = in.readLong();
+        HopTrace trace = HopTrace.read(in);
+
+        int valueLength = in.readInt();
+        byte[] value = null;
+        if (valueLength >= 0 && valueLength <= STREAM_THRESHOLD) {
+            value = new byte[valueLength];
+            in.readFully(value);
+        }
+
+        return new Message(command, requestID, replyAddr, replyPort, key, value, valueLength, serverID, version,
+                ttl, trace);
+    }
+}
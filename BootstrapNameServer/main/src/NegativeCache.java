@@ -0,0 +1,56 @@
+/*
+ * Keys recently found missing, kept by the server a lookup entered the system through so
+ * repeated lookups for absent keys are answered without going around the ring.
+ *
+ * Inserts sent through other servers do not invalidate this cache, so entries expire
+ * after a short TTL. Inserts sent through this server invalidate the key straight away,
+ * and bump its version so a miss that was already in flight is not cached afterwards.
+ * Keys are between [0, MAX_OBJECT_AMOUNT), so one slot is kept per key.
+ */
+public class NegativeCache {
+
+    private final long ttlMillis;
+    private final long[] expiresAt; // 0 if the key is not cached
+    private final int[] versions;
+
+    public NegativeCache(int keyAmount, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.expiresAt = new long[keyAmount];
+        this.versions = new int[keyAmount];
+    }
+
+    /*
+     * Returns true if the key was found missing within the last TTL.
+     */
+    public synchronized boolean contains(int key) {
+        if (expiresAt[key] == 0) {
+            return false;
+        }
+        if (expiresAt[key] <= System.currentTimeMillis()) {
+            expiresAt[key] = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Returns the key's current version, taken when a request for the key is sent.
+     */
+    public synchronized int version(int key) {
+        return versions[key];
+    }
+
+    /*
+     * Caches a miss, unless the key was invalidated after the request was sent.
+     */
+    public synchronized void add(int key, int version) {
+        if (versions[key] == version) {
+            expiresAt[key] = System.currentTimeMillis() + ttlMillis;
+        }
+    }
+
+    public synchronized void invalidate(int key) {
+        versions[key]++;
+        expiresAt[key] = 0;
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+ * Storage for the key/value pairs a server is responsible for. Keys are between
+ * [0, MAX_OBJECT_AMOUNT), values are arbitrary bytes.
+ *
+ * Ranges are (exclusive, inclusive) like a server's key range, and can wrap around past
+ * the highest key. Ranges are moved between servers in a raw format:
+ *   int entry count | per entry: int key, int value length, value bytes
+ */
+public interface ObjectStore {
+
+    /*
+     * Returns the key's value, null if it is not stored.
+     */
+    byte[] get(int key);
+
+    void put(int key, byte[] value);
+
+    /*
+     * Returns true if the key was stored.
+     */
+    boolean remove(int key);
+
+    int size();
+
+    /*
+     * Writes a copy of the range of keys. The keys stay stored until removeRange() is
+     * called.
+     */
+    void writeRange(DataOutput out, int rangeStart, int rangeEnd) throws IOException;
+
+    void removeRange(int rangeStart, int rangeEnd);
+
+    /*
+     * Stores the entries written by writeRange() on another server.
+     */
+    default void readEntries(DataInput in) throws IOException {
+        readEntries(in, EntryListener.NONE);
+    }
+
+    /*
+     * Stores the entries written by writeRange() on another server, passing each entry's
+     * key and value bytes to listener as they are copied in. Wrappers follow what was
+     * stored this way, without the values being read whole onto the heap.
+     */
+    void readEntries(DataInput in, EntryListener listener) throws IOException;
+
+    /*
+     * Follows the entries read by readEntries(): start() before each entry's value, then
+     * bytes() with the value in order, possibly in several chunks, then end().
+     */
+    interface EntryListener {
+
+        EntryListener NONE = new EntryListener() {
+            @Override
+            public void start(int key, int length) {
+            }
+
+            @Override
+            public void bytes(byte[] chunk, int offset, int length) {
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+
+        /*
+         * Called before an entry's value is stored. Throwing rejects the entry, e.g. for
+         * a key out of range, and stops the read.
+         */
+        void start(int key, int length) throws IOException;
+
+        void bytes(byte[] chunk, int offset, int length);
+
+        void end();
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Keeps values in a direct (off-heap) buffer, so stored values are not scanned or
+ * copied by the garbage collector. Values are appended to the end of the arena; an int
+ * array indexed by key holds each value's offset and length.
+ *
+ * Deletes, overwrites and migrated ranges leave dead bytes behind. Once more than half
+ * of the used space is dead, or the arena runs out of room, the live values are copied
+ * into a new arena sized for them (compaction) and the old one is released.
+ *
+ * Ranges are moved as raw bytes straight between the arena and the stream, values are
+ * only copied onto the heap by get().
+ */
+public class OffHeapObjectStore implements ObjectStore {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    // Scratch space used to copy bytes between the arena and a stream
+    private static final int COPY_CHUNK = 8 * 1024;
+
+    private final int[] offsets; // -1 if the key is not stored
+    private final int[] lengths;
+    private final byte[] copyBuffer = new byte[COPY_CHUNK];
+
+    private ByteBuffer arena;
+    private int used;
+    private int deadBytes;
+    private int size;
+
+    public OffHeapObjectStore(int keyAmount) {
+        this.offsets = new int[keyAmount];
+        this.lengths = new int[keyAmount];
+        Arrays.fill(offsets, -1);
+
+        this.arena = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public synchronized byte[] get(int key) {
+        if (offsets[key] < 0) {
+            return null;
+        }
+
+        byte[] value = new byte[lengths[key]];
+        arena.get(offsets[key], value);
+        return value;
+    }
+
+    @Override
+    public synchronized void put(int key, byte[] value) {
+        free(key);
+        int offset = allocate(value.length);
+        arena.put(offset, value);
+        index(key, offset, value.length);
+    }
+
+    @Override
+    public synchronized boolean remove(int key) {
+        boolean removed = free(key);
+        compactIfSparse();
+        return removed;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void writeRange(DataOutput out, int rangeStart, int rangeEnd) throws IOException {
+        int count = 0;
+        for (int i = 1, n = rangeLength(rangeStart, rangeEnd); i <= n; i++) {
+            if (offsets[(rangeStart + i) % offsets.length] >= 0) count++;
+        }
+
+        out.writeInt(count);
+        for (int i = 1, n = rangeLength(rangeStart, rangeEnd); i <= n; i++) {
+            int key = (rangeStart + i) % offsets.length;
+            if (offsets[key] < 0) continue;
+
+            out.writeInt(key);
+            out.writeInt(lengths[key]);
+            for (int copied = 0; copied < lengths[key]; ) {
+                int chunk = Math.min(COPY_CHUNK, lengths[key] - copied);
+                arena.get(offsets[key] + copied, copyBuffer, 0, chunk);
+                out.write(copyBuffer, 0, chunk);
+                copied += chunk;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeRange(int rangeStart, int rangeEnd) {
+        for (int i = 1, n = rangeLength(rangeStart, rangeEnd); i <= n; i++) {
+            free((rangeStart + i) % offsets.length);
+        }
+        compactIfSparse();
+    }
+
+    @Override
+    public synchronized void readEntries(DataInput in, EntryListener listener) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int key = in.readInt();
+            int length = in.readInt();
+            listener.start(key, length);
+
+            free(key);
+            int offset = allocate(length);
+            for (int copied = 0; copied < length; ) {
+                int chunk = Math.min(COPY_CHUNK, length - copied);
+                in.readFully(copyBuffer, 0, chunk);
+                arena.put(offset + copied, copyBuffer, 0, chunk);
+                listener.bytes(copyBuffer, 0, chunk);
+                copied += chunk;
+            }
+            index(key, offset, length);
+            listener.end();
+        }
+    }
+
+    /*
+     * Returns the number of keys in the (exclusive, inclusive) range, the whole key space
+     * if both ends are the same.
+     */
+    private int rangeLength(int rangeStart, int rangeEnd) {
+        int length = Math.floorMod(rangeEnd - rangeStart, offsets.length);
+        return length == 0 ? offsets.length : length;
+    }
+
+    private void index(int key, int offset, int length) {
+        offsets[key] = offset;
+        lengths[key] = length;
+        size++;
+    }
+
+    /*
+     * Drops a key from the index, its bytes become dead space. Returns true if the key
+     * was stored.
+     */
+    private boolean free(int key) {
+        if (offsets[key] < 0) {
+            return false;
+        }
+
+        deadBytes += lengths[key];
+        offsets[key] = -1;
+        size--;
+        return true;
+    }
+
+    /*
+     * Returns the offset of length free bytes at the end of the arena, compacting or
+     * growing the arena first if there is not enough room.
+     */
+    private int allocate(int length) {
+        if (used + length > arena.capacity()) {
+            int live = used - deadBytes;
+            int capacity = arena.capacity();
+            while (live + length > capacity / 2) {
+                capacity *= 2;
+            }
+            compact(capacity);
+        }
+
+        int offset = used;
+        used += length;
+        return offset;
+    }
+
+    /*
+     * Compacts once more than half of the used space is dead, shrinking the arena if the
+     * live values fit in a quarter of it.
+     */
+    private void compactIfSparse() {
+        if (deadBytes <= used / 2 || deadBytes < INITIAL_CAPACITY / 4) {
+            return;
+        }
+
+        int live = used - deadBytes;
+        int capacity = arena.capacity();
+        while (capacity > INITIAL_CAPACITY && live < capacity / 4) {
+            capacity /= 2;
+        }
+        compact(capacity);
+    }
+
+    /*
+     * Copies the live values into a new arena of the given capacity, in key order.
+     */
+    private void compact(int capacity) {
+        ByteBuffer compacted = ByteBuffer.allocateDirect(capacity);
+        int position = 0;
+
+        for (int key = 0; key < offsets.length; key++) {
+            if (offsets[key] < 0) continue;
+
+            compacted.put(position, arena, offsets[key], lengths[key]);
+            offsets[key] = position;
+            position += lengths[key];
+        }
+
+        // Old arena's memory is released once the buffer is garbage collected
+        arena = compacted;
+        used = position;
+        deadBytes = 0;
+    }
+}
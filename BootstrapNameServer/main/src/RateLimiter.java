@@ -0,0 +1,50 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * One token bucket per source, each refilled at ratePerSecond up to burst tokens. A
+ * request takes one token and is turned away if its source has none left, so a single
+ * busy source cannot take up all of a server's capacity.
+ */
+public class RateLimiter {
+
+    private final double tokensPerMilli;
+    private final double burst;
+    private final ConcurrentHashMap<InetSocketAddress, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private static class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        private Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+    }
+
+    public RateLimiter(double ratePerSecond, double burst) {
+        this.tokensPerMilli = ratePerSecond / 1000;
+        this.burst = burst;
+    }
+
+    /*
+     * Takes a token from the source's bucket. Returns false if the bucket is empty.
+     */
+    public boolean tryAcquire(InetSocketAddress source) {
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.computeIfAbsent(source, s -> new Bucket(burst, now));
+
+        synchronized (bucket) {
+            if (now > bucket.refilledAt) {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) * tokensPerMilli);
+                bucket.refilledAt = now;
+            }
+
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            bucket.tokens--;
+            return true;
+        }
+    }
+}
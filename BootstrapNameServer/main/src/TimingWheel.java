@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Hierarchical timing wheel of keys due at a given time. Level 0 has a slot per tick,
+ * each level above it a slot per full turn of the level below (64 slots per level, so
+ * with 100ms ticks the 4 levels reach about 19 days ahead; keys due later wait in the
+ * last level and are placed again when it turns). As the wheel advances, the slot of a
+ * higher level coming up is emptied into the levels below it, and the keys in level 0's
+ * current slot are due.
+ *
+ * Scheduling, rescheduling and cancelling a key take constant time and advancing takes
+ * constant time per tick plus the keys moved, however many keys are scheduled. Each key
+ * is in at most one slot, held in per-key links rather than allocated entries.
+ *
+ * Not thread safe, callers lock around it.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final int[] heads = new int[LEVELS * SLOTS]; // First key in each slot, -1 if empty
+    private final int[] next;
+    private final int[] prev;
+    private final int[] slots; // Slot each key is in, -1 if not scheduled
+    private final long[] dueTicks;
+    private long currentTick;
+
+    public TimingWheel(int keyAmount, long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.next = new int[keyAmount];
+        this.prev = new int[keyAmount];
+        this.slots = new int[keyAmount];
+        this.dueTicks = new long[keyAmount];
+        this.currentTick = now / tickMillis;
+
+        Arrays.fill(heads, -1);
+        Arrays.fill(slots, -1);
+    }
+
+    /*
+     * Schedules the key to be due at the first tick at or after dueAt, replacing the
+     * time it was scheduled at before. Keys already due are due on the next tick.
+     */
+    public void schedule(int key, long dueAt) {
+        cancel(key);
+        dueTicks[key] = Math.max(currentTick + 1, (dueAt + tickMillis - 1) / tickMillis);
+        place(key);
+    }
+
+    public void cancel(int key) {
+        int slot = slots[key];
+        if (slot < 0) {
+            return;
+        }
+
+        if (prev[key] >= 0) next[prev[key]] = next[key];
+        else heads[slot] = next[key];
+        if (next[key] >= 0) prev[next[key]] = prev[key];
+        slots[key] = -1;
+    }
+
+    /*
+     * Moves the wheel up to now and returns the keys that came due, which are no longer
+     * scheduled.
+     */
+    public List<Integer> advance(long now) {
+        List<Integer> due = new ArrayList<>();
+
+        while (currentTick < now / tickMillis) {
+            currentTick++;
+
+            // Higher levels first, their keys may be due in level 0's slot of this tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    for (int key : empty(level, currentTick >> (level * SLOT_BITS))) {
+                        if (dueTicks[key] <= currentTick) due.add(key);
+                        else place(key);
+                    }
+                }
+            }
+            due.addAll(empty(0, currentTick));
+        }
+        return due;
+    }
+
+    /*
+     * Links the key into the lowest level whose slots reach its due tick. Level l is
+     * chosen once the due tick is less than a full turn of l's slots ahead, so the slot is
+     * always still to come.
+     */
+    private void place(int key) {
+        long dueTick = dueTicks[key];
+        int level = 0;
+        while (level < LEVELS - 1
+                && (dueTick >> (level * SLOT_BITS)) - (currentTick >> (level * SLOT_BITS)) >= SLOTS) {
+            level++;
+        }
+
+        // Keys due past the last level's reach wait in its furthest slot
+        long levelTick = Math.min(dueTick >> (level * SLOT_BITS),
+                (currentTick >> (level * SLOT_BITS)) + SLOTS - 1);
+        int slot = level * SLOTS + (int) (levelTick & (SLOTS - 1));
+
+        prev[key] = -1;
+        next[key] = heads[slot];
+        if (heads[slot] >= 0) prev[heads[slot]] = key;
+        heads[slot] = key;
+        slots[key] = slot;
+    }
+
+    /*
+     * Unlinks and returns every key in the level's slot for the given level tick.
+     */
+    private List<Integer> empty(int level, long levelTick) {
+        int slot = level * SLOTS + (int) (levelTick & (SLOTS - 1));
+        List<Integer> keys = new ArrayList<>();
+
+        for (int key = heads[slot]; key >= 0; key = next[key]) {
+            keys.add(key);
+            slots[key] = -1;
+        }
+        heads[slot] = -1;
+        return keys;
+    }
+}
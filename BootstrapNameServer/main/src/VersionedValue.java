@@ -0,0 +1,100 @@
+/*
+ * Values are stored with their version and lease in front:
+ *   long version | long expires at (0 if never) | value bytes
+ * Stores, range transfers and range checks move these records as they are, so a value
+ * keeps its version and lease when its range moves to another server.
+ *
+ * A new version is one past the key's current version, or the current time in
+ * milliseconds if that is higher. A key that was deleted and inserted again therefore
+ * does not start over at an old version (as long as server clocks roughly agree), and a
+ * compare-and-set holding a version read before the delete fails. Version 0 means the
+ * key is not stored.
+ *
+ * A value with a lease expires at the given time in milliseconds, unless the lease is
+ * renewed first. Renewing keeps the version, only writes make a new one.
+ */
+public class VersionedValue {
+
+    private static final int VERSION_BYTES = Long.BYTES;
+    public static final int HEADER_BYTES = VERSION_BYTES + Long.BYTES;
+
+    private VersionedValue() {
+    }
+
+    /*
+     * Returns the record of a value without a lease.
+     */
+    public static byte[] record(long version, byte[] value) {
+        return record(version, 0, value);
+    }
+
+    public static byte[] record(long version, long expiresAt, byte[] value) {
+        byte[] record = new byte[HEADER_BYTES + value.length];
+        writeLong(record, 0, version);
+        writeLong(record, VERSION_BYTES, expiresAt);
+        System.arraycopy(value, 0, record, HEADER_BYTES, value.length);
+        return record;
+    }
+
+    /*
+     * Returns a copy of the record with a new lease, same version and value.
+     */
+    public static byte[] renewed(byte[] record, long expiresAt) {
+        byte[] renewed = record.clone();
+        writeLong(renewed, VERSION_BYTES, expiresAt);
+        return renewed;
+    }
+
+    /*
+     * Returns the record's version, 0 if record is null.
+     */
+    public static long version(byte[] record) {
+        return record != null ? readLong(record, 0) : 0;
+    }
+
+    /*
+     * Returns the time the record's lease runs out, 0 if it has none or record is null.
+     */
+    public static long expiresAt(byte[] record) {
+        return record != null ? readLong(record, VERSION_BYTES) : 0;
+    }
+
+    public static boolean isExpired(byte[] record, long now) {
+        long expiresAt = expiresAt(record);
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    /*
+     * Returns the record's value, null if record is null.
+     */
+    public static byte[] value(byte[] record) {
+        if (record == null) {
+            return null;
+        }
+
+        byte[] value = new byte[record.length - HEADER_BYTES];
+        System.arraycopy(record, HEADER_BYTES, value, 0, value.length);
+        return value;
+    }
+
+    /*
+     * Returns the version for a value replacing record, which can be null.
+     */
+    public static long nextVersion(byte[] record) {
+        return Math.max(version(record) + 1, System.currentTimeMillis());
+    }
+
+    private static void writeLong(byte[] record, int offset, long value) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            record[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long readLong(byte[] record, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (record[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Watches registered on the server that owns their keys. A watch stays registered for
+ * leaseMillis after it was last renewed; the server the client is connected to renews
+ * its watches periodically, so watches of clients that went away expire on their own.
+ *
+ * Each server only holds the part of a watch that falls in its own range. After a range
+ * moves, a server holding a watch for keys it no longer owns routes that part of the
+ * watch on again, so the new owner picks it up without waiting for the next renewal.
+ */
+public class Watches {
+
+    private final long leaseMillis;
+    private final ConcurrentHashMap<Watch, Long> expiries = new ConcurrentHashMap<>();
+
+    /*
+     * Keys [firstKey, lastKey] watched by a client of the server at addr:port, which
+     * told its watch apart from its other ones by watchID. Ranges never wrap around.
+     */
+    public static class Watch {
+        private final InetAddress addr;
+        private final int port;
+        private final int watchID;
+        private final int firstKey;
+        private final int lastKey;
+
+        public Watch(InetAddress addr, int port, int watchID, int firstKey, int lastKey) {
+            this.addr = addr;
+            this.port = port;
+            this.watchID = watchID;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        public InetAddress getAddr() {
+            return addr;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getWatchID() {
+            return watchID;
+        }
+
+        public int getFirstKey() {
+            return firstKey;
+        }
+
+        public int getLastKey() {
+            return lastKey;
+        }
+
+        /*
+         * Returns the same watch over keys [firstKey, lastKey] only.
+         */
+        public Watch part(int firstKey, int lastKey) {
+            return new Watch(addr, port, watchID, firstKey, lastKey);
+        }
+
+        public boolean covers(int key) {
+            return key >= firstKey && key <= lastKey;
+        }
+
+        public void write(ObjectOutputStream out) throws IOException {
+            out.writeObject(addr);
+            out.writeInt(port);
+            out.writeInt(watchID);
+            out.writeInt(firstKey);
+            out.writeInt(lastKey);
+        }
+
+        public static Watch read(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            InetAddress addr = (InetAddress) in.readObject();
+            return new Watch(addr, in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Watch)) {
+                return false;
+            }
+            Watch watch = (Watch) other;
+            return port == watch.port && watchID == watch.watchID && firstKey == watch.firstKey
+                    && lastKey == watch.lastKey && addr.equals(watch.addr);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(addr, port, watchID, firstKey, lastKey);
+        }
+    }
+
+    public Watches(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /*
+     * Registers a watch, or extends its lease if it is registered already.
+     */
+    public void renew(Watch watch) {
+        expiries.put(watch, System.currentTimeMillis() + leaseMillis);
+    }
+
+    public void remove(Watch watch) {
+        expiries.remove(watch);
+    }
+
+    /*
+     * Returns the watches covering the key, one per client watch even if parts of it
+     * from before a range moved are still registered. Expired watches are dropped.
+     */
+    public List<Watch> matching(int key) {
+        long now = System.currentTimeMillis();
+        List<Watch> matching = new ArrayList<>();
+        Set<Watch> seen = new HashSet<>();
+
+        for (Map.Entry<Watch, Long> entry : expiries.entrySet()) {
+            Watch watch = entry.getKey();
+            if (entry.getValue() <= now) {
+                expiries.remove(watch, entry.getValue());
+            } else if (watch.covers(key) && seen.add(watch.part(0, 0))) {
+                matching.add(watch);
+            }
+        }
+        return matching;
+    }
+
+    public List<Watch> all() {
+        return new ArrayList<>(expiries.keySet());
+    }
+}
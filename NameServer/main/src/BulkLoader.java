@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Loads files of "<key> <value>" lines into the system.
+ *
+ * Files are split into chunks at line breaks, and each chunk is memory-mapped and parsed
+ * by its own thread. The last line for a key wins, as if the file was read in order.
+ *
+ * The parsed keys are then partitioned by owner: the loader walks the ring from a seed
+ * server with "bulk_load", each server answering with its range and successor, and
+ * streams every server its own keys in batches, all servers at once. Keys a server
+ * refuses because its range moved in the meantime are loaded again on another walk.
+ *
+ * Also runs on its own: java BulkLoader <file> <server address> <server port>
+ */
+public class BulkLoader {
+
+    // Small files are parsed by a single thread, chunks are mapped whole
+    private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    // Keys are streamed to their owner in batches of at most BATCH_KEYS keys or
+    // BATCH_BYTES of values (a single larger value goes in a batch of its own)
+    private static final int BATCH_KEYS = 256;
+    private static final int BATCH_BYTES = 4 * 1024 * 1024;
+
+    // How many times the ring is walked for keys refused by their owner
+    private static final int MAX_WALKS = 3;
+
+    // Keys the servers take, MAX_OBJECT_AMOUNT of the servers
+    private static final int KEY_AMOUNT = 1024;
+
+    private BulkLoader() {
+    }
+
+    /*
+     * Parses the lines of a file after its first headerLines lines. Returns the value of
+     * every key indexed by key, null for keys without a line. Blank lines are skipped.
+     */
+    public static byte[][] parse(Path file, int headerLines, int keyAmount) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            for (int i = 0; i < headerLines; i++) {
+                start = nextLine(channel, start);
+            }
+
+            // Chunks end where a line starts, so no line is split between two chunks
+            int threads = Runtime.getRuntime().availableProcessors();
+            long chunkBytes = Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, (size - start) / threads + 1));
+            List<long[]> chunks = new ArrayList<>();
+            while (start < size) {
+                long end = start + chunkBytes < size ? nextLine(channel, start + chunkBytes - 1) : size;
+                if (end - start > MAX_CHUNK_BYTES) {
+                    throw new IOException("Line at byte " + start + " too long.");
+                }
+                chunks.add(new long[] { start, end });
+                start = end;
+            }
+
+            ExecutorService parsers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks.size())));
+            try {
+                List<Future<byte[][]>> parsed = new ArrayList<>();
+                for (long[] chunk : chunks) {
+                    parsed.add(parsers.submit(() -> parseChunk(channel, chunk[0], chunk[1], keyAmount)));
+                }
+
+                byte[][] values = new byte[keyAmount][];
+                for (Future<byte[][]> chunkValues : parsed) {
+                    byte[][] chunk = get(chunkValues);
+                    for (int key = 0; key < keyAmount; key++) {
+                        if (chunk[key] != null) values[key] = chunk[key];
+                    }
+                }
+                return values;
+            } finally {
+                parsers.shutdown();
+            }
+        }
+    }
+
+    /*
+     * Returns the position after the line break following position, or the file's size
+     * if there is none.
+     */
+    private static long nextLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long size = channel.size();
+
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) break;
+
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static byte[][] parseChunk(FileChannel channel, long begin, long end, int keyAmount) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, begin, end - begin);
+        byte[][] values = new byte[keyAmount][];
+        int limit = buffer.limit();
+        int position = 0;
+
+        while (position < limit) {
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') lineEnd++;
+            int next = lineEnd + 1;
+            if (lineEnd > position && buffer.get(lineEnd - 1) == '\r') lineEnd--;
+
+            if (lineEnd > position) {
+                int key = 0;
+                int i = position;
+                for (; i < lineEnd && buffer.get(i) != ' '; i++) {
+                    byte digit = buffer.get(i);
+                    key = key * 10 + digit - '0';
+                    if (digit < '0' || digit > '9' || key >= keyAmount) {
+                        throw new IOException("Line at byte " + (begin + position) + " has no valid key.");
+                    }
+                }
+                if (i == position || i == lineEnd) {
+                    throw new IOException("Line at byte " + (begin + position) + " is not \"<key> <value>\".");
+                }
+
+                // Value is the rest of the line after the key, spaces included
+                byte[] value = new byte[lineEnd - i - 1];
+                ByteBuffer line = buffer.duplicate();
+                line.position(i + 1);
+                line.get(value);
+                values[key] = value;
+            }
+            position = next;
+        }
+        return values;
+    }
+
+    /*
+     * Returns the number of keys with a value.
+     */
+    public static int count(byte[][] values) {
+        int count = 0;
+        for (byte[] value : values) {
+            if (value != null) count++;
+        }
+        return count;
+    }
+
+    /*
+     * Stores every key with a value on the server owning it, starting the walk around the
+     * ring at the seed server. Returns the number of keys stored, less than count(values)
+     * if some could not be stored within MAX_WALKS walks.
+     */
+    public static int load(byte[][] values, InetAddress seedAddr, int seedPort) {
+        List<Integer> remaining = new ArrayList<>();
+        for (int key = 0; key < values.length; key++) {
+            if (values[key] != null) remaining.add(key);
+        }
+
+        int loaded = 0;
+        ExecutorService streams = Executors.newCachedThreadPool();
+        try {
+            for (int walk = 0; walk < MAX_WALKS && !remaining.isEmpty(); walk++) {
+                List<List<Integer>> partitions = new ArrayList<>();
+                List<Future<List<Integer>>> refusals = new ArrayList<>();
+                List<Integer> unassigned = remaining;
+                InetAddress addr = seedAddr;
+                int port = seedPort;
+
+                // Every server is visited at most once, ranges never overlap
+                for (int hops = 0; !unassigned.isEmpty() && hops < values.length; hops++) {
+                    Socket socket = null;
+                    ObjectOutputStream outputStream = null;
+                    ObjectInputStream inputStream = null;
+                    List<Integer> owned = new ArrayList<>();
+                    List<Integer> rest = new ArrayList<>();
+
+                    try {
+                        socket = new Socket(addr, port);
+                        outputStream = new ObjectOutputStream(socket.getOutputStream());
+                        outputStream.writeUTF("bulk_load");
+                        outputStream.flush();
+
+                        inputStream = new ObjectInputStream(socket.getInputStream());
+                        boolean connected = inputStream.readBoolean();
+                        int rangeStart = inputStream.readInt();
+                        int rangeEnd = inputStream.readInt();
+                        addr = (InetAddress) inputStream.readObject();
+                        port = inputStream.readInt();
+
+                        for (int key : unassigned) {
+                            (connected && betweenRange(key, rangeStart, rangeEnd) ? owned : rest).add(key);
+                        }
+                    } catch (IOException | ClassNotFoundException e) {
+                        System.err.println("[ERROR] Problem occurred when walking the ring to bulk load keys.");
+                        close(socket, outputStream, inputStream);
+                        break;
+                    }
+
+                    Socket ownerSocket = socket;
+                    ObjectOutputStream ownerOutput = outputStream;
+                    ObjectInputStream ownerInput = inputStream;
+                    partitions.add(owned);
+                    refusals.add(streams.submit(() -> stream(ownerSocket, ownerOutput, ownerInput, owned, values)));
+                    unassigned = rest;
+                }
+
+                remaining = new ArrayList<>(unassigned);
+                for (int i = 0; i < partitions.size(); i++) {
+                    List<Integer> refused;
+                    try {
+                        refused = get(refusals.get(i));
+                    } catch (IOException e) {
+                        System.err.println("[ERROR] Problem occurred when streaming keys to their owner.");
+                        refused = partitions.get(i);
+                    }
+                    loaded += partitions.get(i).size() - refused.size();
+                    remaining.addAll(refused);
+                }
+            }
+        } finally {
+            streams.shutdown();
+        }
+        return loaded;
+    }
+
+    /*
+     * Streams the keys to their owner in batches and returns the keys it refused.
+     */
+    private static List<Integer> stream(Socket socket, ObjectOutputStream outputStream, ObjectInputStream inputStream,
+                                        List<Integer> keys, byte[][] values) throws IOException {
+        try {
+            int first = 0;
+            while (first < keys.size()) {
+                int last = first;
+                long bytes = 0;
+                while (last < keys.size() && last - first < BATCH_KEYS
+                        && (last == first || bytes + values[keys.get(last)].length <= BATCH_BYTES)) {
+                    bytes += values[keys.get(last)].length;
+                    last++;
+                }
+
+                outputStream.writeInt(last - first);
+                for (int key : keys.subList(first, last)) {
+                    outputStream.writeInt(key);
+                    outputStream.writeInt(values[key].length);
+                    outputStream.write(values[key]);
+                }
+                outputStream.flush();
+                first = last;
+            }
+            outputStream.writeInt(0);
+            outputStream.flush();
+
+            List<Integer> refused = new ArrayList<>();
+            for (int i = 0, n = inputStream.readInt(); i < n; i++) {
+                refused.add(inputStream.readInt());
+            }
+            return refused;
+        } finally {
+            close(socket, outputStream, inputStream);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void close(Socket socket, ObjectOutputStream outputStream, ObjectInputStream inputStream) {
+        try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
+        try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+        try { if (socket != null) socket.close(); } catch (IOException e) { }
+    }
+
+    /*
+     * Checks if a key is between (inclusive) the given range, which can wrap around past
+     * the highest key.
+     */
+    private static boolean betweenRange(int key, int rangeStart, int rangeEnd) {
+        if (rangeStart <= rangeEnd) {
+            return key >= rangeStart && key <= rangeEnd;
+        } else {
+            return key >= rangeStart || key <= rangeEnd;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("[ERROR] java BulkLoader <file> <server address> <server port>");
+            System.exit(1);
+        }
+
+        long startedAt = System.currentTimeMillis();
+        byte[][] values = parse(Paths.get(args[0]), 0, KEY_AMOUNT);
+        int loaded = load(values, InetAddress.getByName(args[1]), Integer.parseInt(args[2]));
+        System.out.println("Loaded " + loaded + " of " + count(values) + " keys in " +
+                (System.currentTimeMillis() - startedAt) + "ms.");
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/*
+ * A server's changes, in the order they were made, for clients to follow (change data
+ * capture): inserts and deletes of keys in its range, and changes of the range itself.
+ *
+ * Every entry gets the next sequence number, starting from 1. The log is kept in memory
+ * and only the latest capacity entries, or fewer if their values take more than maxBytes,
+ * are held; a reader that falls further behind finds a gap in the sequence numbers and
+ * has to read the keys again. The log starts over when the server does, which readers
+ * tell by its ID (the time it was created).
+ *
+ * When the range grows, the keys taken over are logged as inserts right after the range,
+ * so following the log from the start gives every key the server holds. Keys leaving the
+ * range get no entries of their own, the range entry drops them.
+ */
+public class ChangeLog {
+
+    /*
+     * An insert, a delete (value null) or a range change ("range", keys firstKey to
+     * lastKey, wrapping past the highest key, both -1 if the server owns no keys).
+     */
+    public static class Entry {
+        private final long seq;
+        private final String type;
+        private final int firstKey;
+        private final int lastKey;
+        private final byte[] value;
+
+        private Entry(long seq, String type, int firstKey, int lastKey, byte[] value) {
+            this.seq = seq;
+            this.type = type;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+            this.value = value;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getKey() {
+            return firstKey;
+        }
+
+        public int getLastKey() {
+            return lastKey;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        private int size() {
+            return value != null ? value.length : 0;
+        }
+    }
+
+    private final long logID = System.currentTimeMillis();
+    private final int keyAmount;
+    private final long maxBytes;
+
+    // Entry seq is held at entries[seq % capacity], oldestSeq to nextSeq - 1
+    private final Entry[] entries;
+    private long oldestSeq = 1;
+    private long nextSeq = 1;
+    private long bytes;
+
+    private int rangeStart = -1;
+    private int rangeEnd = -1;
+
+    public ChangeLog(int keyAmount, int capacity, long maxBytes) {
+        this.keyAmount = keyAmount;
+        this.entries = new Entry[capacity];
+        this.maxBytes = maxBytes;
+    }
+
+    public long getLogID() {
+        return logID;
+    }
+
+    /*
+     * Logs an insert of a key, or a delete if value is null.
+     */
+    public synchronized void logChange(int key, byte[] value) {
+        add(value != null ? "insert" : "delete", key, key, value);
+    }
+
+    /*
+     * Logs the server's range, if it changed, and the keys it took over with it. values
+     * returns a key's stored value, null if not stored.
+     */
+    public synchronized void logRange(int firstKey, int lastKey, IntFunction<byte[]> values) {
+        if (firstKey == rangeStart && lastKey == rangeEnd) {
+            return;
+        }
+
+        add("range", firstKey, lastKey, null);
+        for (int key = 0; key < keyAmount; key++) {
+            if (inRange(key, firstKey, lastKey) && !inRange(key, rangeStart, rangeEnd)) {
+                byte[] value = values.apply(key);
+                if (value != null) add("insert", key, key, value);
+            }
+        }
+        rangeStart = firstKey;
+        rangeEnd = lastKey;
+    }
+
+    /*
+     * Logs that the server no longer owns any keys, after it exited.
+     */
+    public synchronized void logExit() {
+        if (rangeStart != -1) {
+            add("range", -1, -1, null);
+            rangeStart = -1;
+            rangeEnd = -1;
+        }
+    }
+
+    private static boolean inRange(int key, int firstKey, int lastKey) {
+        if (firstKey == -1) {
+            return false;
+        }
+        return firstKey <= lastKey ? key >= firstKey && key <= lastKey : key >= firstKey || key <= lastKey;
+    }
+
+    private void add(String type, int firstKey, int lastKey, byte[] value) {
+        Entry entry = new Entry(nextSeq++, type, firstKey, lastKey, value);
+        int slot = (int) (entry.seq % entries.length);
+        if (entries[slot] != null) {
+            bytes -= entries[slot].size();
+        }
+        entries[slot] = entry;
+        bytes += entry.size();
+        oldestSeq = Math.max(oldestSeq, nextSeq - entries.length);
+
+        // Drop the oldest entries until the values fit, keeping the newest at least
+        while (bytes > maxBytes && oldestSeq < entry.seq) {
+            slot = (int) (oldestSeq++ % entries.length);
+            bytes -= entries[slot].size();
+            entries[slot] = null;
+        }
+
+        notifyAll();
+    }
+
+    /*
+     * Returns up to max entries from sequence number fromSeq on, or from the oldest entry
+     * held if fromSeq is older. Waits up to waitMillis for an entry if there are none yet,
+     * and returns no entries if none came.
+     */
+    public synchronized List<Entry> read(long fromSeq, int max, long waitMillis) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + waitMillis;
+        while (fromSeq >= nextSeq) {
+            long remaining = waitUntil - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return List.of();
+            }
+            wait(remaining);
+        }
+
+        List<Entry> read = new ArrayList<>();
+        for (long seq = Math.max(fromSeq, oldestSeq); seq < nextSeq && read.size() < max; seq++) {
+            read.add(entries[(int) (seq % entries.length)]);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,706 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Serves remote clients on a dedicated client port using a small RESP-like (Redis
+ * serialization protocol) text protocol.
+ *
+ * Requests are either arrays of bulk strings or inline commands:
+ *   *2\r\n$6\r\nLOOKUP\r\n$2\r\n12\r\n
+ *   LOOKUP 12\r\n
+ *
+ * Commands and replies:
+ *   LOOKUP <key>         | Bulk string value, or null bulk string ($-1) if not found.
+ *   INSERT <key> <value> [EX <seconds>]
+ *                        | +OK, the value expires after seconds unless renewed.
+ *   DELETE <key>         | :1 if deleted, :0 if not found.
+ *   VLOOKUP <key>        | Array of the value and its version (*2\r\n$5\r\nvalue\r\n:17\r\n),
+ *                        |  or null bulk string if not found.
+ *   CAS <key> <version> <value>
+ *                        | :<new version> if the key was still at version (0: not
+ *                        |  stored), -CONFLICT version <current version> otherwise.
+ *   CDELETE <key> <version>
+ *                        | :1 if the key was still at version and is deleted,
+ *                        |  -CONFLICT version <current version> otherwise.
+ *   RENEW <key> <seconds>
+ *                        | :1 if the key's lease now runs out after seconds, :0 if not
+ *                        |  found. A key inserted without a lease gets one.
+ *   RLOOKUP <value>      | Array of the keys holding the value (*2\r\n:3\r\n:17\r\n), empty
+ *                        |  if none. Only keys of servers indexing their values are found.
+ *   STATS                | Bulk string of "name:value" lines: servers, keys, bytes stored,
+ *                        |  keys covered by the servers that answered and the ring's
+ *                        |  hottest keys, then a line per server with its range, keys,
+ *                        |  bytes, heap usage and hottest keys. Hot keys are listed as
+ *                        |  key=requests pairs, hottest first (see HotKeys).
+ *   TAIL <seq>           | :<log ID>, then follows this server's change log from entry seq
+ *                        |  (0: the oldest entry held).
+ *   WATCH <key> [<last>] | :<watch ID>, watches the key or keys [key, last].
+ *   UNWATCH [<watch ID>] | :<watches removed>, every watch on the connection if no ID.
+ *   PING                 | +PONG
+ *   QUIT                 | +OK, then the connection is closed.
+ * Errors are replied as -ERR <message>.
+ *
+ * Bulk strings are binary safe, values can be any bytes up to MAX_BULK_LENGTH. A request
+ * with a longer bulk string, more than MAX_REQUEST_BYTES in bulk strings, more than
+ * MAX_ARGS arguments, or a line longer than MAX_LINE_LENGTH is malformed and closes the
+ * connection. Memory for a bulk string is only taken as its bytes arrive.
+ *
+ * Every insert gives the key's value a new, higher version. A client can update a value
+ * without a lock by reading it with VLOOKUP and writing it back with CAS, retrying from
+ * the read on a conflict. Writes replace the key's lease as well: a value inserted
+ * without EX, or by CAS, never expires.
+ *
+ * The reverse index behind RLOOKUP is updated after a write is replied to, so a key
+ * written just before may be missing from the reply. The keys listed were looked up
+ * and held the value when the reply was sent.
+ *
+ * Clients may pipeline any number of requests without waiting for replies. Each
+ * connection has a reader and a writer thread; replies are written back on the
+ * requesting connection in the order the requests were sent.
+ *
+ * Inserts, deletes and expiries of watched keys are pushed to the connection as they
+ * happen, as an array of the event, the key and the new value (null bulk string if
+ * deleted or expired):
+ *   *3\r\n$6\r\nchange\r\n:12\r\n$5\r\nvalue\r\n
+ * Events go out between replies and are dropped if the client falls MAX_PIPELINED
+ * replies behind. A connection's watches end with it.
+ *
+ * A tailing connection is pushed the server's change log (see ChangeLog) in batches of
+ * whatever entries are there, up to MAX_TAIL_BATCH, each entry an array of its sequence
+ * number, type and key (first and last key for a range) and value:
+ *   *2\r\n$7\r\nchanges\r\n*2\r\n
+ *   *4\r\n:41\r\n$6\r\ninsert\r\n:12\r\n$5\r\nvalue\r\n
+ *   *4\r\n:42\r\n$6\r\ndelete\r\n:12\r\n$-1\r\n
+ *   *4\r\n:43\r\n$5\r\nrange\r\n:301\r\n:700\r\n
+ * Unlike events, batches are never dropped: the log waits for a slow client, as long as
+ * it holds the entries. Replies to later requests on the connection go out between
+ * batches. A client resumes from the sequence number after the last entry it got, on
+ * this server only, as every server has a log of its own.
+ */
+public class ClientServer implements Runnable {
+
+    // Requests a connection may have in flight before the reader stops reading
+    private static final int MAX_PIPELINED = 1024;
+    private static final long REPLY_TIMEOUT_MS = 5000;
+
+    // Limits on what a request may declare: a value, all its bulk strings together, its
+    // arguments (no command takes more than 5) and a line
+    private static final int MAX_BULK_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_REQUEST_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_ARGS = 16;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Bulk strings are read into a buffer of at most BULK_CHUNK bytes at first, grown as
+    // the bytes arrive, so a header alone never allocates the length it declares
+    private static final int BULK_CHUNK = 64 * 1024;
+
+    // Most change log entries pushed at once, and how long a tail waits for new ones
+    // before checking its connection is still open
+    private static final int MAX_TAIL_BATCH = 256;
+    private static final long TAIL_WAIT_MS = 1000;
+
+    // Queued by the reader after the last request, tells the writer to close the connection
+    private static final CompletableFuture<byte[]> END_OF_REQUESTS = new CompletableFuture<>();
+
+    private final ClientRequestHandler server;
+    private final int clientPort;
+    private final AtomicInteger nextWatchID = new AtomicInteger();
+    private ServerSocket serverSocket;
+    private volatile boolean isShutdown;
+
+    // Open client connections, each removed once its writer closed it
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    public ClientServer(ClientRequestHandler server, int clientPort) {
+        this.server = server;
+        this.clientPort = clientPort;
+    }
+
+    /*
+     * Reads requests from a client and queues a pending reply for each one.
+     */
+    private void readRequests(Socket sock) {
+        BlockingQueue<CompletableFuture<byte[]>> replies = new ArrayBlockingQueue<>(MAX_PIPELINED);
+        List<Integer> watchIDs = new ArrayList<>();
+        List<Thread> tails = new ArrayList<>();
+
+        try {
+            InputStream inputStream = new BufferedInputStream(sock.getInputStream());
+            OutputStream outputStream = new BufferedOutputStream(sock.getOutputStream());
+            new Thread(() -> writeReplies(sock, outputStream, replies)).start();
+
+            List<byte[]> request;
+            while ((request = readRequest(inputStream)) != null) {
+                if (request.isEmpty()) continue;
+
+                replies.put(handleRequest(request, sock, replies, watchIDs, tails));
+                for (Thread tail : tails) {
+                    // Started once the TAIL reply is queued, so it goes out ahead of the entries
+                    if (tail.getState() == Thread.State.NEW) tail.start();
+                }
+                if (text(request.get(0)).equalsIgnoreCase("quit")) break;
+            }
+        } catch (IOException e) {
+            // Client disconnected or sent a malformed request, close the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int watchID : watchIDs) {
+                server.unwatch(watchID);
+            }
+            for (Thread tail : tails) {
+                tail.interrupt();
+            }
+            try { replies.put(END_OF_REQUESTS); } catch (InterruptedException e) { }
+        }
+    }
+
+    /*
+     * Writes replies back to a client in request order, flushing whenever no further
+     * reply is ready so pipelined replies share a write.
+     */
+    private void writeReplies(Socket sock, OutputStream outputStream, BlockingQueue<CompletableFuture<byte[]>> replies) {
+        try {
+            while (true) {
+                CompletableFuture<byte[]> reply = replies.take();
+                if (reply == END_OF_REQUESTS) break;
+
+                byte[] response;
+                try {
+                    response = reply.get(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    response = error("no reply from the system");
+                } catch (ExecutionException e) {
+                    response = error(e.getCause().getMessage());
+                }
+
+                outputStream.write(response);
+                if (replies.isEmpty()) outputStream.flush();
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            // Client disconnected, drop the remaining replies
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try { sock.close(); } catch (IOException e) { }
+            synchronized (connections) {
+                connections.remove(sock);
+                connections.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Starts a request and returns its pending reply. Watches started on the connection
+     * push their events to replies and are added to watchIDs, tails push change log
+     * entries once started and are added to tails.
+     */
+    private CompletableFuture<byte[]> handleRequest(List<byte[]> request, Socket sock,
+                                                    BlockingQueue<CompletableFuture<byte[]>> replies,
+                                                    List<Integer> watchIDs, List<Thread> tails) {
+        String command = text(request.get(0)).toLowerCase();
+
+        if (command.equals("ping")) {
+            return CompletableFuture.completedFuture(simpleString("PONG"));
+        } else if (command.equals("quit")) {
+            return CompletableFuture.completedFuture(simpleString("OK"));
+        } else if (command.equals("lookup") || command.equals("delete")) {
+            if (request.size() != 2) {
+                return CompletableFuture.completedFuture(error(command + " <key>"));
+            }
+            return submit(command, command, text(request.get(1)), null, "0", null);
+        } else if (command.equals("vlookup")) {
+            if (request.size() != 2) {
+                return CompletableFuture.completedFuture(error("vlookup <key>"));
+            }
+            return submit(command, "lookup", text(request.get(1)), null, "0", null);
+        } else if (command.equals("insert")) {
+            if (request.size() != 3 && !(request.size() == 5 && text(request.get(3)).equalsIgnoreCase("ex"))) {
+                return CompletableFuture.completedFuture(error("insert <key> <value> [EX <seconds>]"));
+            }
+            String seconds = request.size() == 5 ? text(request.get(4)) : null;
+            return submit(command, command, text(request.get(1)), request.get(2), "0", seconds);
+        } else if (command.equals("cas")) {
+            if (request.size() != 4) {
+                return CompletableFuture.completedFuture(error("cas <key> <version> <value>"));
+            }
+            return submit(command, command, text(request.get(1)), request.get(3), text(request.get(2)), null);
+        } else if (command.equals("cdelete")) {
+            if (request.size() != 3) {
+                return CompletableFuture.completedFuture(error("cdelete <key> <version>"));
+            }
+            return submit(command, "cas", text(request.get(1)), null, text(request.get(2)), null);
+        } else if (command.equals("renew")) {
+            if (request.size() != 3) {
+                return CompletableFuture.completedFuture(error("renew <key> <seconds>"));
+            }
+            return submit(command, command, text(request.get(1)), null, "0", text(request.get(2)));
+        } else if (command.equals("rlookup")) {
+            if (request.size() != 2) {
+                return CompletableFuture.completedFuture(error("rlookup <value>"));
+            }
+            return reverseLookup(request.get(1));
+        } else if (command.equals("stats")) {
+            if (request.size() != 1) {
+                return CompletableFuture.completedFuture(error("stats"));
+            }
+            return stats();
+        } else if (command.equals("watch")) {
+            if (request.size() != 2 && request.size() != 3) {
+                return CompletableFuture.completedFuture(error("watch <key> [<last key>]"));
+            }
+            String lastKey = text(request.get(request.size() - 1));
+            return watch(text(request.get(1)), lastKey, replies, watchIDs);
+        } else if (command.equals("unwatch")) {
+            if (request.size() > 2) {
+                return CompletableFuture.completedFuture(error("unwatch [<watch ID>]"));
+            }
+            return unwatch(request.size() == 2 ? text(request.get(1)) : null, watchIDs);
+        } else if (command.equals("tail")) {
+            if (request.size() != 2) {
+                return CompletableFuture.completedFuture(error("tail <seq>"));
+            }
+            if (!tails.isEmpty()) {
+                return CompletableFuture.completedFuture(error("connection is already tailing"));
+            }
+            return tail(text(request.get(1)), sock, replies, tails);
+        }
+
+        return CompletableFuture.completedFuture(error("unknown command '" + text(request.get(0)) + "'"));
+    }
+
+    /*
+     * Sends the system request for a client command, the two differ for commands that are
+     * variants of another request (VLOOKUP, CDELETE). Seconds is the lease asked for, null
+     * if none.
+     */
+    private CompletableFuture<byte[]> submit(String clientCommand, String command, String key, byte[] value,
+                                             String version, String seconds) {
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        int parsedKey;
+        long parsedVersion;
+        try {
+            parsedKey = Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(error("key is not an integer"));
+        }
+        try {
+            parsedVersion = Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(error("version is not an integer"));
+        }
+        if (parsedVersion < 0) {
+            return CompletableFuture.completedFuture(error("version must not be negative"));
+        }
+
+        long ttl = 0;
+        if (seconds != null) {
+            try {
+                ttl = Integer.parseInt(seconds) * 1000L;
+            } catch (NumberFormatException e) {
+                return CompletableFuture.completedFuture(error("seconds is not an integer"));
+            }
+            if (ttl <= 0) {
+                return CompletableFuture.completedFuture(error("seconds must be positive"));
+            }
+        }
+
+        String errorMessage = server.submitRequest(command, parsedKey, value, parsedVersion, ttl, false,
+                response -> reply.complete(formatReply(clientCommand, response)));
+        if (errorMessage != null) {
+            return CompletableFuture.completedFuture(error(errorMessage));
+        }
+
+        return reply;
+    }
+
+    private CompletableFuture<byte[]> reverseLookup(byte[] value) {
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        String errorMessage = server.reverseLookup(value, response -> reply.complete(formatReply("rlookup", response)));
+        if (errorMessage != null) {
+            return CompletableFuture.completedFuture(error(errorMessage));
+        }
+
+        return reply;
+    }
+
+    private CompletableFuture<byte[]> stats() {
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        String errorMessage = server.ringStats(report -> reply.complete(bulkString(ascii(report))));
+        if (errorMessage != null) {
+            return CompletableFuture.completedFuture(error(errorMessage));
+        }
+
+        return reply;
+    }
+
+    private CompletableFuture<byte[]> watch(String firstKey, String lastKey,
+                                            BlockingQueue<CompletableFuture<byte[]>> replies,
+                                            List<Integer> watchIDs) {
+        int first;
+        int last;
+        try {
+            first = Integer.parseInt(firstKey);
+            last = Integer.parseInt(lastKey);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(error("key is not an integer"));
+        }
+        if (first > last) {
+            return CompletableFuture.completedFuture(error("last key comes before first key"));
+        }
+
+        int watchID = nextWatchID.incrementAndGet();
+        String errorMessage = server.watch(watchID, first, last,
+                event -> replies.offer(CompletableFuture.completedFuture(formatEvent(event))));
+        if (errorMessage != null) {
+            return CompletableFuture.completedFuture(error(errorMessage));
+        }
+
+        watchIDs.add(watchID);
+        return CompletableFuture.completedFuture(ascii(":" + watchID + "\r\n"));
+    }
+
+    /*
+     * Removes one of the connection's watches, or all of them if watchID is null.
+     */
+    private CompletableFuture<byte[]> unwatch(String watchID, List<Integer> watchIDs) {
+        List<Integer> removing = new ArrayList<>(watchIDs);
+        if (watchID != null) {
+            try {
+                removing = List.of(Integer.parseInt(watchID));
+            } catch (NumberFormatException e) {
+                return CompletableFuture.completedFuture(error("watch ID is not an integer"));
+            }
+        }
+
+        int removed = 0;
+        for (int id : removing) {
+            // Watches of other connections are not this client's to remove
+            if (watchIDs.remove(Integer.valueOf(id)) && server.unwatch(id)) removed++;
+        }
+        return CompletableFuture.completedFuture(ascii(":" + removed + "\r\n"));
+    }
+
+    private CompletableFuture<byte[]> tail(String fromSeq, Socket sock,
+                                           BlockingQueue<CompletableFuture<byte[]>> replies, List<Thread> tails) {
+        long from;
+        try {
+            from = Long.parseLong(fromSeq);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(error("seq is not an integer"));
+        }
+        if (from < 0) {
+            return CompletableFuture.completedFuture(error("seq must not be negative"));
+        }
+
+        ChangeLog log = server.changeLog();
+        tails.add(new Thread(() -> pushChanges(log, from, sock, replies)));
+        return CompletableFuture.completedFuture(ascii(":" + log.getLogID() + "\r\n"));
+    }
+
+    /*
+     * Pushes change log entries from sequence number fromSeq on to a tailing connection
+     * until it is closed. Waits for room among the replies rather than dropping entries.
+     */
+    private void pushChanges(ChangeLog log, long fromSeq, Socket sock,
+                             BlockingQueue<CompletableFuture<byte[]>> replies) {
+        long next = fromSeq;
+        try {
+            while (!sock.isClosed()) {
+                List<ChangeLog.Entry> entries = log.read(next, MAX_TAIL_BATCH, TAIL_WAIT_MS);
+                if (entries.isEmpty()) continue;
+
+                CompletableFuture<byte[]> batch = CompletableFuture.completedFuture(formatChanges(entries));
+                while (!replies.offer(batch, TAIL_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    if (sock.isClosed()) return;
+                }
+                next = entries.get(entries.size() - 1).getSeq() + 1;
+            }
+        } catch (InterruptedException e) {
+            // Connection's reader is done
+        }
+    }
+
+    /*
+     * Returns the pushed array for a batch of change log entries.
+     */
+    private static byte[] formatChanges(List<ChangeLog.Entry> entries) {
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(ascii("*2\r\n$7\r\nchanges\r\n*" + entries.size() + "\r\n"));
+        for (ChangeLog.Entry entry : entries) {
+            parts.add(ascii("*4\r\n:" + entry.getSeq() + "\r\n$" + entry.getType().length() + "\r\n" +
+                    entry.getType() + "\r\n:" + entry.getKey() + "\r\n"));
+            if (entry.getType().equals("range")) {
+                parts.add(ascii(":" + entry.getLastKey() + "\r\n"));
+            } else {
+                parts.add(entry.getValue() != null ? bulkString(entry.getValue()) : ascii("$-1\r\n"));
+            }
+        }
+        return concat(parts.toArray(new byte[0][]));
+    }
+
+    /*
+     * Returns the pushed array for a change to a watched key.
+     */
+    private static byte[] formatEvent(Message event) {
+        return concat(ascii("*3\r\n$6\r\nchange\r\n:" + event.getKey() + "\r\n"),
+                event.getValue() != null ? bulkString(event.getValue()) : ascii("$-1\r\n"));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+
+        byte[] joined = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, offset, part.length);
+            offset += part.length;
+        }
+        return joined;
+    }
+
+    /*
+     * Returns the protocol reply to a client command for a reply message. Replies with the
+     * request's own command mean the key was not found, or for cas that its version did
+     * not match.
+     */
+    private byte[] formatReply(String clientCommand, Message reply) {
+        switch (reply.getCommand()) {
+            case "lookup_found":
+                if (clientCommand.equals("vlookup")) {
+                    return concat(ascii("*2\r\n"), bulkString(reply.getValue()),
+                            ascii(":" + reply.getVersion() + "\r\n"));
+                }
+                return bulkString(reply.getValue());
+            case "lookup":
+                return ascii("$-1\r\n");
+            case "insert_found":
+                return simpleString("OK");
+            case "delete_found":
+                return ascii(":1\r\n");
+            case "delete":
+                return ascii(":0\r\n");
+            case "cas_found":
+                return ascii(":" + (clientCommand.equals("cdelete") ? 1 : reply.getVersion()) + "\r\n");
+            case "cas":
+                if (reply.getServerID() == -1) {
+                    // Went around the ring without reaching the key's owner
+                    return error("cas failed");
+                }
+                return ascii("-CONFLICT version " + reply.getVersion() + "\r\n");
+            case "renew_found":
+                return ascii(":1\r\n");
+            case "renew":
+                return ascii(":0\r\n");
+            case "rlookup_found":
+                List<Integer> keys = ReverseIndex.decodeKeys(reply.getValue());
+                StringBuilder array = new StringBuilder("*" + keys.size() + "\r\n");
+                for (int key : keys) {
+                    array.append(':').append(key).append("\r\n");
+                }
+                return ascii(array.toString());
+            case "rlookup":
+                return ascii("*0\r\n");
+            case "busy":
+                // Shed by an overloaded server, the client should retry later
+                return ascii("-BUSY system is busy, try again later\r\n");
+            case "timeout":
+                // No reply before the request's deadline, it may still have been carried out
+                return ascii("-TIMEOUT no reply in time, try again later\r\n");
+            default:
+                return error(reply.getCommand() + " failed");
+        }
+    }
+
+    private static byte[] bulkString(byte[] value) {
+        byte[] header = ascii("$" + value.length + "\r\n");
+        byte[] bulk = Arrays.copyOf(header, header.length + value.length + 2);
+        System.arraycopy(value, 0, bulk, header.length, value.length);
+        bulk[bulk.length - 2] = '\r';
+        bulk[bulk.length - 1] = '\n';
+        return bulk;
+    }
+
+    private static byte[] simpleString(String message) {
+        return ascii("+" + message + "\r\n");
+    }
+
+    private static byte[] error(String message) {
+        return ascii("-ERR " + message + "\r\n");
+    }
+
+    private static byte[] ascii(String reply) {
+        return reply.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] arg) {
+        return new String(arg, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Reads one request as a list of arguments, returns null once the client has closed
+     * the connection.
+     */
+    private static List<byte[]> readRequest(InputStream inputStream) throws IOException {
+        String line = readLine(inputStream);
+        if (line == null) {
+            return null;
+        }
+
+        if (!line.startsWith("*")) {
+            // Inline command
+            List<byte[]> request = new ArrayList<>();
+            for (String arg : line.trim().split("\\s+")) {
+                if (!arg.isEmpty()) request.add(arg.getBytes(StandardCharsets.UTF_8));
+            }
+            return request;
+        }
+
+        int count = parseLength(line, MAX_ARGS);
+        List<byte[]> request = new ArrayList<>(count);
+        long requestBytes = 0;
+        for (int i = 0; i < count; i++) {
+            String header = readLine(inputStream);
+            if (header == null || !header.startsWith("$")) {
+                throw new IOException("Expected bulk string");
+            }
+
+            int length = parseLength(header, MAX_BULK_LENGTH);
+            requestBytes += length;
+            if (requestBytes > MAX_REQUEST_BYTES) {
+                throw new IOException("Request over " + MAX_REQUEST_BYTES + " bytes");
+            }
+
+            request.add(readBulk(inputStream, length));
+            readLine(inputStream); // Trailing CRLF
+        }
+        return request;
+    }
+
+    private static int parseLength(String header, int max) throws IOException {
+        try {
+            int length = Integer.parseInt(header.substring(1));
+            if (length < 0) throw new IOException("Negative length");
+            if (length > max) throw new IOException("Length over " + max + ": " + header);
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed length: " + header);
+        }
+    }
+
+    /*
+     * Reads a line ending in CRLF (or LF), returns null at end of stream.
+     */
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) throw new IOException("Line too long");
+            line.write(b);
+        }
+
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(Arrays.copyOf(bytes, length), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Reads a bulk string of the given length, doubling the buffer as it fills up rather
+     * than trusting the length before the bytes are there.
+     */
+    private static byte[] readBulk(InputStream inputStream, int length) throws IOException {
+        byte[] bulk = new byte[Math.min(length, BULK_CHUNK)];
+        int read = 0;
+        while (read < length) {
+            if (read == bulk.length) {
+                bulk = Arrays.copyOf(bulk, (int) Math.min(length, 2L * bulk.length));
+            }
+
+            int count = inputStream.read(bulk, read, bulk.length - read);
+            if (count == -1) throw new EOFException();
+            read += count;
+        }
+        return bulk;
+    }
+
+    /*
+     * Stops taking connections and requests. Requests already read are still answered,
+     * for up to drainMillis, then every connection is closed; clients send the requests
+     * they got no reply to through another server.
+     */
+    public void shutdown(long drainMillis) {
+        isShutdown = true;
+        try { if (serverSocket != null) serverSocket.close(); } catch (IOException e) { }
+
+        // Readers see the end of their client's requests, writers close the connection
+        // once the replies queued before it are written
+        for (Socket sock : connections) {
+            try { sock.shutdownInput(); } catch (IOException e) { }
+        }
+
+        long drainedBy = System.currentTimeMillis() + drainMillis;
+        synchronized (connections) {
+            try {
+                while (!connections.isEmpty() && System.currentTimeMillis() < drainedBy) {
+                    connections.wait(Math.max(1, drainedBy - System.currentTimeMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Socket sock : connections) {
+            try { sock.close(); } catch (IOException e) { }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            serverSocket = new ServerSocket(clientPort);
+            while (!isShutdown) {
+                Socket sock = serverSocket.accept();
+                connections.add(sock);
+                if (isShutdown) sock.shutdownInput();
+                new Thread(() -> readRequests(sock)).start();
+            }
+        } catch (IOException e) {
+            if (!isShutdown) {
+                System.err.println("[ERROR] Unable to accept client connections on port " + clientPort + ".");
+            }
+        } finally {
+            try { if (serverSocket != null) serverSocket.close(); } catch (IOException e) { }
+        }
+    }
+}
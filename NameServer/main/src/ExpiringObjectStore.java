@@ -0,0 +1,170 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Wraps the store of VersionedValue records and expires the ones whose lease ran out.
+ * Every record with a lease is put on a TimingWheel as it is stored, whichever way it
+ * arrives, so values moved here with their range keep expiring on time. expire() removes
+ * the keys that came due; until then expired values read as not stored.
+ */
+public class ExpiringObjectStore implements ObjectStore {
+
+    private final MerkleObjectStore objects;
+    private final TimingWheel wheel;
+    private final int keyAmount;
+    private final List<Integer> lapsed = new ArrayList<>(); // Expired keys removed before their tick
+
+    public ExpiringObjectStore(MerkleObjectStore objects, int keyAmount, long tickMillis) {
+        this.objects = objects;
+        this.wheel = new TimingWheel(keyAmount, tickMillis, System.currentTimeMillis());
+        this.keyAmount = keyAmount;
+
+        // Values stored before the store was wrapped
+        for (int key = 0; key < keyAmount; key++) {
+            byte[] record = objects.get(key);
+            if (record != null) schedule(key, record);
+        }
+    }
+
+    /*
+     * Returns the key's record, null if it is not stored or its lease ran out.
+     */
+    @Override
+    public byte[] get(int key) {
+        byte[] record = objects.get(key);
+        return VersionedValue.isExpired(record, System.currentTimeMillis()) ? null : record;
+    }
+
+    @Override
+    public synchronized void put(int key, byte[] record) {
+        objects.put(key, record);
+        schedule(key, record);
+    }
+
+    /*
+     * Stores the record only if the key is not stored yet, or its lease ran out. Returns
+     * true if it was stored.
+     */
+    public synchronized boolean putIfAbsent(int key, byte[] record) {
+        if (get(key) != null) {
+            return false;
+        }
+
+        put(key, record);
+        return true;
+    }
+
+    /*
+     * Returns true if the key was stored and its lease had not run out yet.
+     */
+    @Override
+    public synchronized boolean remove(int key) {
+        wheel.cancel(key);
+        if (objects.get(key) != null && get(key) == null) {
+            // Expired, left for expire() to report
+            objects.remove(key);
+            lapsed.add(key);
+            return false;
+        }
+        return objects.remove(key);
+    }
+
+    /*
+     * Returns the length of the key's record, -1 if it is not stored. A record whose lease
+     * ran out still counts until expire() removes it.
+     */
+    public int length(int key) {
+        return objects.length(key);
+    }
+
+    @Override
+    public int size() {
+        return objects.size();
+    }
+
+    @Override
+    public void writeRange(DataOutput out, int rangeStart, int rangeEnd) throws IOException {
+        objects.writeRange(out, rangeStart, rangeEnd);
+    }
+
+    /*
+     * Keys of the range stay on the wheel, they are skipped once due if not stored again.
+     */
+    @Override
+    public synchronized void removeRange(int rangeStart, int rangeEnd) {
+        objects.removeRange(rangeStart, rangeEnd);
+    }
+
+    /*
+     * Entries go straight into the wrapped store. Only the head of each record (its
+     * version and lease) is kept as it is copied in, to schedule the lease from.
+     */
+    @Override
+    public synchronized void readEntries(DataInput in, EntryListener listener) throws IOException {
+        objects.readEntries(in, new EntryListener() {
+            private int key;
+            private final byte[] head = new byte[VersionedValue.HEADER_BYTES];
+            private int headLength;
+
+            @Override
+            public void start(int key, int length) throws IOException {
+                if (key < 0 || key >= keyAmount) {
+                    throw new IOException("Key " + key + " out of range.");
+                }
+                this.key = key;
+                headLength = 0;
+                listener.start(key, length);
+            }
+
+            @Override
+            public void bytes(byte[] chunk, int offset, int length) {
+                int copied = Math.min(length, head.length - headLength);
+                System.arraycopy(chunk, offset, head, headLength, copied);
+                headLength += copied;
+                listener.bytes(chunk, offset, length);
+            }
+
+            @Override
+            public void end() {
+                if (headLength == head.length) {
+                    schedule(key, head);
+                } else {
+                    wheel.cancel(key);
+                }
+                listener.end();
+            }
+        });
+    }
+
+    /*
+     * Removes the keys whose lease ran out by now and returns them.
+     */
+    public synchronized List<Integer> expire(long now) {
+        List<Integer> expired = new ArrayList<>(lapsed);
+        lapsed.clear();
+
+        for (int key : wheel.advance(now)) {
+            // Renewed or replaced leases were rescheduled, so due keys are normally expired
+            byte[] record = objects.get(key);
+            if (VersionedValue.isExpired(record, now)) {
+                objects.remove(key);
+                expired.add(key);
+            } else if (record != null) {
+                schedule(key, record);
+            }
+        }
+        return expired;
+    }
+
+    private void schedule(int key, byte[] record) {
+        long expiresAt = VersionedValue.expiresAt(record);
+        if (expiresAt != 0) {
+            wheel.schedule(key, expiresAt);
+        } else {
+            wheel.cancel(key);
+        }
+    }
+}
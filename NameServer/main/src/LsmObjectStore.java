@@ -0,0 +1,523 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/*
+ * Keeps values on disk, so a server can hold more than fits in memory (log-structured
+ * merge storage).
+ *
+ * Writes go to a sorted map in memory (the memtable). Once it holds MEMTABLE_BYTES it is
+ * written out in the background, in key order, as a new segment file; a deleted key is
+ * written as a tombstone. Segment files are never changed once written. When there are
+ * more than MAX_SEGMENTS, they are merged in the background into a single segment with
+ * only the newest value of each key and without tombstones (compaction).
+ *
+ * Segments are in the store's raw range format, tombstones written with length -1:
+ *   int entry count | per entry: int key, int value length, value bytes
+ *
+ * Each segment keeps the offset and length of every key it holds in memory. Keys are
+ * bounded, so this takes a few KB and rules keys out exactly, where a Bloom filter would
+ * only do so mostly. A lookup checks the memtables and then the segments, newest first,
+ * without touching the disk, and reads the value with a single positioned read from the
+ * newest segment holding the key. Values read recently are kept in a cache of up to
+ * CACHE_BYTES.
+ *
+ * Ranges are moved by copying value bytes from the segments to the stream in chunks,
+ * without building the values on the heap first. A range moved here is copied from the
+ * stream into a segment of its own, in the order it was sent, rather than going through
+ * the memtable.
+ *
+ * Files live in a temporary directory (under java.io.tmpdir) that is deleted when the
+ * server exits. They do not survive a restart, a server entering again starts empty.
+ */
+public class LsmObjectStore implements ObjectStore {
+
+    private static final long MEMTABLE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final long CACHE_BYTES = 8 * 1024 * 1024;
+
+    // Memtable bytes counted per entry besides its value, roughly
+    private static final int ENTRY_OVERHEAD = 64;
+
+    // Scratch space used to copy value bytes from a segment to a stream
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    /*
+     * An immutable segment file and where each of its keys is.
+     */
+    private static class Segment {
+        private final long segmentID;
+        private final Path file;
+        private final FileChannel channel;
+        private final long[] offsets; // Of the value, -1 if the key is not in the segment
+        private final int[] lengths; // -1 for a tombstone
+
+        private Segment(long segmentID, Path file, long[] offsets, int[] lengths) throws IOException {
+            this.segmentID = segmentID;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        private boolean holds(int key) {
+            return offsets[key] >= 0;
+        }
+    }
+
+    private final int keyAmount;
+    private final Path dir;
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lsm-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private TreeMap<Integer, byte[]> memtable = new TreeMap<>();
+    private long memtableBytes;
+    private TreeMap<Integer, byte[]> flushing; // Memtable being written out, null if none
+    private final List<Segment> segments = new ArrayList<>(); // Newest first
+    private long nextSegmentID;
+    private boolean compacting;
+
+    private final BitSet stored = new BitSet();
+
+    // Values read from segments by segment ID and key, least recently used first
+    private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+
+    public LsmObjectStore(int keyAmount) throws IOException {
+        this.keyAmount = keyAmount;
+        this.dir = Files.createTempDirectory("objects-");
+        Runtime.getRuntime().addShutdownHook(new Thread(this::deleteFiles));
+    }
+
+    @Override
+    public synchronized byte[] get(int key) {
+        byte[] value = memtable.get(key);
+        if (value == null && flushing != null) {
+            value = flushing.get(key);
+        }
+        if (value != null) {
+            return value == TOMBSTONE ? null : value;
+        }
+
+        Segment segment = newestHolding(key);
+        if (segment == null || segment.lengths[key] < 0) {
+            return null;
+        }
+
+        long cacheKey = segment.segmentID * keyAmount + key;
+        value = cache.get(cacheKey);
+        if (value == null) {
+            try {
+                value = read(segment, key);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read key " + key + " from " + segment.file, e);
+            }
+            cache(cacheKey, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void put(int key, byte[] value) {
+        byte[] previous = memtable.put(key, value);
+        memtableBytes += ENTRY_OVERHEAD + value.length - (previous != null ? ENTRY_OVERHEAD + previous.length : 0);
+        stored.set(key);
+
+        if (memtableBytes >= MEMTABLE_BYTES) {
+            rotate();
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(int key) {
+        if (!stored.get(key)) {
+            return false;
+        }
+
+        put(key, TOMBSTONE);
+        stored.clear(key);
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+        return stored.cardinality();
+    }
+
+    @Override
+    public synchronized void writeRange(DataOutput out, int rangeStart, int rangeEnd) throws IOException {
+        int count = 0;
+        for (int i = 1, n = rangeLength(rangeStart, rangeEnd); i <= n; i++) {
+            if (stored.get((rangeStart + i) % keyAmount)) count++;
+        }
+
+        out.writeInt(count);
+        byte[] copyBuffer = new byte[COPY_CHUNK];
+        for (int i = 1, n = rangeLength(rangeStart, rangeEnd); i <= n; i++) {
+            int key = (rangeStart + i) % keyAmount;
+            if (!stored.get(key)) continue;
+
+            byte[] value = memtable.get(key);
+            if (value == null && flushing != null) {
+                value = flushing.get(key);
+            }
+
+            out.writeInt(key);
+            if (value != null) {
+                out.writeInt(value.length);
+                out.write(value);
+            } else {
+                Segment segment = newestHolding(key);
+                out.writeInt(segment.lengths[key]);
+                copy(segment, key, out, copyBuffer);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeRange(int rangeStart, int rangeEnd) {
+        for (int i = 1, n = rangeLength(rangeStart, rangeEnd); i <= n; i++) {
+            remove((rangeStart + i) % keyAmount);
+        }
+    }
+
+    /*
+     * The entries are copied straight into a new segment, which then takes precedence
+     * over what was stored for its keys before, memtables included.
+     */
+    @Override
+    public void readEntries(DataInput in, EntryListener listener) throws IOException {
+        int count = in.readInt();
+        if (count == 0) {
+            return;
+        }
+
+        long segmentID;
+        synchronized (this) {
+            segmentID = nextSegmentID++;
+        }
+
+        Path file = dir.resolve("segment-" + segmentID + ".seg");
+        long[] offsets = new long[keyAmount];
+        int[] lengths = new int[keyAmount];
+        Arrays.fill(offsets, -1);
+
+        byte[] buffer = new byte[COPY_CHUNK];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                COPY_CHUNK))) {
+            out.writeInt(count);
+            long position = 4;
+            for (int i = 0; i < count; i++) {
+                int key = in.readInt();
+                int length = in.readInt();
+                if (key < 0 || key >= keyAmount) {
+                    throw new IOException("Key " + key + " out of range.");
+                }
+                listener.start(key, length);
+
+                out.writeInt(key);
+                out.writeInt(length);
+                offsets[key] = position + 8;
+                lengths[key] = length;
+                for (int copied = 0; copied < length; ) {
+                    int chunk = Math.min(COPY_CHUNK, length - copied);
+                    in.readFully(buffer, 0, chunk);
+                    out.write(buffer, 0, chunk);
+                    listener.bytes(buffer, 0, chunk);
+                    copied += chunk;
+                }
+                position += 8 + length;
+                listener.end();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        Segment segment = new Segment(segmentID, file, offsets, lengths);
+        boolean compact;
+        synchronized (this) {
+            // A memtable being written out would end up in front of the segment
+            while (flushing != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Files.deleteIfExists(file);
+                    throw new IOException("Interrupted while storing entries");
+                }
+            }
+
+            for (int key = 0; key < keyAmount; key++) {
+                if (!segment.holds(key)) continue;
+
+                byte[] previous = memtable.remove(key);
+                if (previous != null) memtableBytes -= ENTRY_OVERHEAD + previous.length;
+                stored.set(key);
+            }
+            segments.add(0, segment);
+
+            compact = segments.size() > MAX_SEGMENTS && !compacting;
+            compacting |= compact;
+        }
+
+        if (compact) {
+            background.execute(this::compact);
+        }
+    }
+
+    /*
+     * Returns the number of keys in the (exclusive, inclusive) range, the whole key space
+     * if both ends are the same.
+     */
+    private int rangeLength(int rangeStart, int rangeEnd) {
+        int length = Math.floorMod(rangeEnd - rangeStart, keyAmount);
+        return length == 0 ? keyAmount : length;
+    }
+
+    private Segment newestHolding(int key) {
+        for (Segment segment : segments) {
+            if (segment.holds(key)) return segment;
+        }
+        return null;
+    }
+
+    /*
+     * Hands the full memtable to the background thread to be written out, after waiting
+     * for the one before it to be written if it is not yet.
+     */
+    private void rotate() {
+        while (flushing != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Flushed later on, the memtable just grows meanwhile
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        flushing = memtable;
+        memtable = new TreeMap<>();
+        memtableBytes = 0;
+        background.execute(this::flush);
+    }
+
+    private void flush() {
+        TreeMap<Integer, byte[]> frozen;
+        long segmentID;
+        synchronized (this) {
+            frozen = flushing;
+            segmentID = nextSegmentID++;
+        }
+
+        int[] lengths = new int[keyAmount];
+        Arrays.fill(lengths, -2);
+        for (Map.Entry<Integer, byte[]> entry : frozen.entrySet()) {
+            lengths[entry.getKey()] = entry.getValue() == TOMBSTONE ? -1 : entry.getValue().length;
+        }
+
+        Segment segment = null;
+        try {
+            segment = writeSegment(segmentID, lengths, (key, out, buffer) -> out.write(frozen.get(key)));
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not write memtable to disk, keeping it in memory.");
+        }
+
+        boolean compact;
+        synchronized (this) {
+            if (segment != null) {
+                segments.add(0, segment);
+            } else {
+                // Kept in the memtable, unless written again since
+                for (Map.Entry<Integer, byte[]> entry : frozen.entrySet()) {
+                    if (!memtable.containsKey(entry.getKey())) {
+                        memtable.put(entry.getKey(), entry.getValue());
+                        memtableBytes += ENTRY_OVERHEAD + entry.getValue().length;
+                    }
+                }
+            }
+            flushing = null;
+            notifyAll();
+
+            compact = segments.size() > MAX_SEGMENTS && !compacting;
+            compacting |= compact;
+        }
+
+        if (compact) {
+            compact();
+        }
+    }
+
+    /*
+     * Merges the segments there are now into one. Segments flushed meanwhile are newer
+     * and stay as they are. As the merged segments include the oldest one, tombstones
+     * have nothing left to hide and are dropped.
+     */
+    private void compact() {
+        List<Segment> merging;
+        long segmentID;
+        synchronized (this) {
+            merging = new ArrayList<>(segments);
+            segmentID = nextSegmentID++;
+        }
+
+        Segment[] sources = new Segment[keyAmount];
+        int[] lengths = new int[keyAmount];
+        Arrays.fill(lengths, -2);
+        for (int key = 0; key < keyAmount; key++) {
+            for (Segment segment : merging) {
+                if (segment.holds(key)) {
+                    if (segment.lengths[key] >= 0) {
+                        sources[key] = segment;
+                        lengths[key] = segment.lengths[key];
+                    }
+                    break;
+                }
+            }
+        }
+
+        Segment merged = null;
+        try {
+            merged = writeSegment(segmentID, lengths, (key, out, buffer) -> copy(sources[key], key, out, buffer));
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not compact segments, keeping them as they are.");
+        }
+
+        synchronized (this) {
+            compacting = false;
+            if (merged == null) {
+                return;
+            }
+
+            segments.removeAll(merging);
+            segments.add(merged);
+            for (Segment segment : merging) {
+                for (int key = 0; key < keyAmount; key++) {
+                    byte[] value = cache.remove(segment.segmentID * keyAmount + key);
+                    if (value != null) cacheBytes -= value.length;
+                }
+                try { segment.channel.close(); } catch (IOException e) { }
+                try { Files.deleteIfExists(segment.file); } catch (IOException e) { }
+            }
+        }
+    }
+
+    /*
+     * Writes a key's value bytes to a segment.
+     */
+    private interface ValueWriter {
+        void write(int key, DataOutput out, byte[] buffer) throws IOException;
+    }
+
+    /*
+     * Writes a new segment file in key order and returns the segment. lengths holds each
+     * key's value length, -1 for a tombstone and -2 for keys not in the segment, and
+     * values writes the value bytes.
+     */
+    private Segment writeSegment(long segmentID, int[] lengths, ValueWriter values) throws IOException {
+        Path file = dir.resolve("segment-" + segmentID + ".seg");
+        long[] offsets = new long[keyAmount];
+        Arrays.fill(offsets, -1);
+
+        int count = 0;
+        for (int length : lengths) {
+            if (length >= -1) count++;
+        }
+
+        byte[] buffer = new byte[COPY_CHUNK];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                COPY_CHUNK))) {
+            out.writeInt(count);
+            long position = 4;
+            for (int key = 0; key < keyAmount; key++) {
+                if (lengths[key] < -1) continue;
+
+                out.writeInt(key);
+                out.writeInt(lengths[key]);
+                offsets[key] = position + 8;
+                if (lengths[key] > 0) values.write(key, out, buffer);
+                position += 8 + Math.max(0, lengths[key]);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        return new Segment(segmentID, file, offsets, lengths);
+    }
+
+    private byte[] read(Segment segment, int key) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(segment.lengths[key]);
+        while (value.hasRemaining()) {
+            if (segment.channel.read(value, segment.offsets[key] + value.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return value.array();
+    }
+
+    /*
+     * Copies a key's value bytes from a segment to out, a chunk at a time.
+     */
+    private static void copy(Segment segment, int key, DataOutput out, byte[] buffer) throws IOException {
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        long offset = segment.offsets[key];
+        for (int copied = 0; copied < segment.lengths[key]; ) {
+            chunk.clear().limit(Math.min(buffer.length, segment.lengths[key] - copied));
+            int read = segment.channel.read(chunk, offset + copied);
+            if (read < 0) throw new EOFException();
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+    }
+
+    private void cache(long cacheKey, byte[] value) {
+        if (value.length > CACHE_BYTES / 4) {
+            return;
+        }
+
+        cache.put(cacheKey, value);
+        cacheBytes += value.length;
+        for (Iterator<Map.Entry<Long, byte[]>> eldest = cache.entrySet().iterator(); cacheBytes > CACHE_BYTES; ) {
+            cacheBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private void deleteFiles() {
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> {
+                try { Files.deleteIfExists(file); } catch (IOException e) { }
+            });
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not delete storage directory " + dir + ".");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Wraps another store and keeps a MerkleTree of its contents up to date, starting from
+ * whatever it already holds. Changes are made one at a time so the tree always matches
+ * what the wrapped store holds. The length of every stored value is kept alongside, so
+ * keys can be counted and sized without reading them from the wrapped store.
+ */
+public class MerkleObjectStore implements ObjectStore {
+
+    private final ObjectStore objects;
+    private final MerkleTree tree;
+    private final int keyAmount;
+    private final int[] lengths; // -1 if the key is not stored
+
+    public MerkleObjectStore(ObjectStore objects, MerkleTree tree, int keyAmount) {
+        this.objects = objects;
+        this.tree = tree;
+        this.keyAmount = keyAmount;
+        this.lengths = new int[keyAmount];
+        Arrays.fill(lengths, -1);
+
+        // Values stored before the store was wrapped
+        for (int key = 0; key < keyAmount; key++) {
+            byte[] value = objects.get(key);
+            if (value != null) {
+                tree.update(key, value);
+                lengths[key] = value.length;
+            }
+        }
+    }
+
+    @Override
+    public byte[] get(int key) {
+        return objects.get(key);
+    }
+
+    @Override
+    public synchronized void put(int key, byte[] value) {
+        objects.put(key, value);
+        tree.update(key, value);
+        lengths[key] = value.length;
+    }
+
+    /*
+     * Stores the value only if the key is not stored yet. Returns true if it was stored.
+     */
+    public synchronized boolean putIfAbsent(int key, byte[] value) {
+        if (objects.get(key) != null) {
+            return false;
+        }
+
+        put(key, value);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(int key) {
+        boolean removed = objects.remove(key);
+        tree.update(key, null);
+        lengths[key] = -1;
+        return removed;
+    }
+
+    /*
+     * Returns the length of the key's value, -1 if it is not stored.
+     */
+    public int length(int key) {
+        return lengths[key];
+    }
+
+    @Override
+    public int size() {
+        return objects.size();
+    }
+
+    @Override
+    public void writeRange(DataOutput out, int rangeStart, int rangeEnd) throws IOException {
+        objects.writeRange(out, rangeStart, rangeEnd);
+    }
+
+    @Override
+    public synchronized void removeRange(int rangeStart, int rangeEnd) {
+        for (int key : tree.keys(rangeStart, rangeEnd)) {
+            tree.update(key, null);
+            lengths[key] = -1;
+        }
+        objects.removeRange(rangeStart, rangeEnd);
+    }
+
+    /*
+     * Entries go straight into the wrapped store. Each value is hashed as it is copied in
+     * and its leaf updated once it is stored.
+     */
+    @Override
+    public synchronized void readEntries(DataInput in, EntryListener listener) throws IOException {
+        objects.readEntries(in, new EntryListener() {
+            private int key;
+            private int length;
+            private long hash;
+
+            @Override
+            public void start(int key, int length) throws IOException {
+                if (key < 0 || key >= keyAmount) {
+                    throw new IOException("Key " + key + " out of range.");
+                }
+                this.key = key;
+                this.length = length;
+                hash = MerkleTree.leafHash(key);
+                listener.start(key, length);
+            }
+
+            @Override
+            public void bytes(byte[] chunk, int offset, int length) {
+                hash = MerkleTree.leafHash(hash, chunk, offset, length);
+                listener.bytes(chunk, offset, length);
+            }
+
+            @Override
+            public void end() {
+                tree.updateHashed(key, hash);
+                lengths[key] = length;
+                listener.end();
+            }
+        });
+    }
+}
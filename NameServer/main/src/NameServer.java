@@ -2,31 +2,237 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-
-public class NameServer implements Runnable {
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+public class NameServer implements Runnable, ClientRequestHandler {
 
     public static final int MAX_OBJECT_AMOUNT = 1024;
 
+    // Single threaded workers data messages are striped across by key
+    private static final int DATA_WORKERS = 8;
+
+    // Threads reading data messages off their connections for the data workers
+    private static final int DATA_READERS = 4;
+
+    // Requests are answered "busy" instead of queued once their data worker has
+    // DATA_QUEUE_LIMIT messages waiting, or once the server they entered the system
+    // through has sent more than SOURCE_RATE_PER_SECOND lately (after a burst of
+    // SOURCE_BURST). Replies are always queued.
+    private static final int DATA_QUEUE_LIMIT = 256;
+    private static final double SOURCE_RATE_PER_SECOND = 4000;
+    private static final double SOURCE_BURST = 2000;
+
+    // Connections waiting to be accepted. Every message opens its own connection, so
+    // bursts queue here rather than being refused.
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    // How long a new connection from another server may take to send its command
+    private static final int COMMAND_TIMEOUT_MS = 2000;
+
+    // How long a server waits for its own arc before refusing a neighbour's exit, and
+    // how often an exiting server retries a refused hand off
+    private static final long ARC_LOCK_TIMEOUT_MS = 1000;
+    private static final int EXIT_ATTEMPTS = 10;
+
+    // On shutdown, requests already under way get up to DRAIN_TIMEOUT_MS to be answered
+    // before the keys are handed off, and requests still sent here afterwards are passed
+    // on to the successor for HANDOFF_LINGER_MS before the name server stops listening
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+    private static final long HANDOFF_LINGER_MS = 2000;
+
+    // How long a key found missing is answered from the negative cache
+    private static final long NEGATIVE_CACHE_TTL_MS = 2000;
+
+    // Leases are checked for expiry every EXPIRY_TICK_MS, the tick of the timing wheel
+    private static final long EXPIRY_TICK_MS = 100;
+
+    // How long concurrent lookups for a key keep joining the one already in flight
+    private static final long LOOKUP_FLIGHT_MAX_AGE_MS = 1000;
+
+    // How often a request that came back to this name server is sent around the ring again
+    private static final int MAX_REQUEST_RETURNS = 3;
+
+    // Requests sent into the system through this name server are answered "timeout" if no
+    // reply came within REQUEST_DEADLINE_MS. Until then a request that could not be sent
+    // is sent again after RETRY_BACKOFF_MS, doubling each time, and with hedging on a
+    // lookup is sent again whenever it waited longer than 95% of recent requests (at
+    // least MIN_HEDGE_MS). Retries and hedges come out of a budget of RETRY_RATIO of the
+    // requests sent, plus RETRY_MIN_PER_SECOND, saved up to RETRY_MAX_BALANCE.
+    private static final long REQUEST_DEADLINE_MS = 3000;
+    private static final long RETRY_BACKOFF_MS = 50;
+    private static final long MIN_HEDGE_MS = 10;
+    private static final double RETRY_RATIO = 0.1;
+    private static final double RETRY_MIN_PER_SECOND = 10;
+    private static final double RETRY_MAX_BALANCE = 100;
+
+    // Data messages to the same server are sent together, once LINK_MAX_MESSAGES or
+    // LINK_MAX_BYTES are queued for it or LINK_LINGER_MICROS after the first was queued
+    private static final int LINK_MAX_MESSAGES = 64;
+    private static final int LINK_MAX_BYTES = 64 * 1024;
+    private static final long LINK_LINGER_MICROS = 500;
+
+    // Longer values are printed as their size
+    private static final int MAX_PRINTED_VALUE = 256;
+
+    // How often a name server checks its arc against its predecessor's, and how many
+    // servers it follows when looking for the one now in front of it
+    private static final long ANTI_ENTROPY_INTERVAL_MS = 5000;
+    private static final int MAX_SYNC_HOPS = 8;
+
+    // Watches registered here expire unless renewed within WATCH_LEASE_MS; servers renew
+    // the watches of their clients every ANTI_ENTROPY_INTERVAL_MS. A watch is passed on
+    // at most MAX_WATCH_HOPS times looking for the servers that own its keys.
+    private static final long WATCH_LEASE_MS = 3 * ANTI_ENTROPY_INTERVAL_MS;
+    private static final int MAX_WATCH_HOPS = MAX_OBJECT_AMOUNT;
+
+    // Reverse index entries held here expire unless published again within INDEX_LEASE_MS;
+    // servers publish the entries of their keys every ANTI_ENTROPY_INTERVAL_MS. Entries
+    // are passed on at most MAX_INDEX_HOPS times looking for the server owning their slot.
+    private static final long INDEX_LEASE_MS = 3 * ANTI_ENTROPY_INTERVAL_MS;
+    private static final int MAX_INDEX_HOPS = MAX_OBJECT_AMOUNT;
+
+    // Change log entries held for clients following it, and the most bytes of values
+    private static final int CHANGE_LOG_CAPACITY = 16384;
+    private static final long CHANGE_LOG_MAX_BYTES = 16 * 1024 * 1024;
+
+    // After each range check the boundary with the predecessor moves if the two loads
+    // differ by more than REBALANCE_TOLERANCE_PERCENT of their total (and at least
+    // REBALANCE_MIN_LOAD). Each move carries at most REBALANCE_MAX_KEYS keys or
+    // REBALANCE_MAX_BYTES of values, so transfers are throttled to one such batch per
+    // ANTI_ENTROPY_INTERVAL_MS.
+    private static final int REBALANCE_TOLERANCE_PERCENT = 25;
+    private static final long REBALANCE_MIN_LOAD = 16;
+    private static final int REBALANCE_MAX_KEYS = 64;
+    private static final int REBALANCE_MAX_BYTES = 1024 * 1024;
+
     private NameServerUI nameServerUI;
 
-    private int nameServerID;
+    // Remote clients, disabled if clientPort is 0
+    private ClientServer clientServer;
+    private int clientPort;
+
+    // Changes when rebalancing moves this name server along the ring
+    private volatile int nameServerID;
     private InetAddress nameServerAddr;
     private int nameServerPort;
     private ServerSocket incomingSocket;
 
-    private InetAddress bootstrapServerAddr;
-    private int bootstrapServerPort;
-
-    private TreeMap<Integer, String> objects;
+    // Servers tried in order when entering the system, any server already in the
+    // system can act as the entry point.
+    private List<InetSocketAddress> seeds;
+
+    // Requests sent into the system through this name server that are waiting for a
+    // reply, by request ID
+    private final ConcurrentHashMap<Integer, Consumer<Message>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestID = new AtomicInteger();
+
+    // When those requests are sent again, see sendRequest()
+    private final RetryPolicy retryPolicy = new RetryPolicy(MIN_HEDGE_MS, RETRY_RATIO, RETRY_MIN_PER_SECOND,
+            RETRY_MAX_BALANCE);
+    private final boolean hedgeLookups;
+
+    // Times each of those requests came back around the ring without reaching its key's
+    // owner, which moved while the request was on its way
+    private final ConcurrentHashMap<Integer, Integer> returnedRequests = new ConcurrentHashMap<>();
+
+    // Times each of those requests could not be sent, for the backoff before the next try
+    private final ConcurrentHashMap<Integer, Integer> failedSends = new ConcurrentHashMap<>();
+
+    // Keys lookups sent through this name server recently found missing
+    private final NegativeCache negativeCache = new NegativeCache(MAX_OBJECT_AMOUNT, NEGATIVE_CACHE_TTL_MS);
+
+    // Lookups in flight from this name server, shared by concurrent lookups for the same key
+    private final LookupFlights lookupFlights = new LookupFlights(MAX_OBJECT_AMOUNT, LOOKUP_FLIGHT_MAX_AGE_MS);
+
+    // Watches on keys in this name server's range, and the watches clients registered
+    // through this name server along with who to tell about their changes, by watch ID
+    private final Watches watches = new Watches(WATCH_LEASE_MS);
+    private final ConcurrentHashMap<Integer, Watches.Watch> clientWatches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Consumer<Message>> watchListeners = new ConcurrentHashMap<>();
+
+    // Part of the reverse index for value slots in this name server's range, and the digest
+    // of the value last published to the index for each key it owns, 0 if none (only if
+    // indexValues is set)
+    private final ReverseIndex reverseIndex = new ReverseIndex(INDEX_LEASE_MS);
+    private final long[] indexedDigests = new long[MAX_OBJECT_AMOUNT];
+    private final boolean indexValues;
+
+    // Inserts, deletes and range changes made here, for TAIL
+    private final ChangeLog changeLog = new ChangeLog(MAX_OBJECT_AMOUNT, CHANGE_LOG_CAPACITY, CHANGE_LOG_MAX_BYTES);
+
+    // Servers the last ring-wide stats query reached, asked first by the next one
+    private final Set<InetSocketAddress> ringView = ConcurrentHashMap.newKeySet();
+
+    // Guards this name server's arc of the ring: the key range, the neighbours and the
+    // stored objects. Lookups/inserts/deletes share the read lock; joins and exits that
+    // change the arc take the write lock, so no request lands in a range while it is
+    // being handed to another server. Each server only locks its own arc, so joins and
+    // exits elsewhere on the ring go ahead in parallel.
+    private final ReentrantReadWriteLock arcLock = new ReentrantReadWriteLock();
+
+    // Inbound connections. The accepting thread reads nothing, the control pool reads each
+    // connection's command. Data messages are read by the data readers and queued by key,
+    // so requests for the same key sent on one connection keep their order; everything
+    // else is handled on the control pool, which never waits behind data messages. Requests beyond what the data workers can
+    // keep up with are shed, see admit().
+    private final ThreadPoolExecutor[] dataWorkers = new ThreadPoolExecutor[DATA_WORKERS];
+    private final ExecutorService dataReaders = Executors.newFixedThreadPool(DATA_READERS);
+    private final ExecutorService controlWorkers = Executors.newCachedThreadPool();
+    private final RateLimiter sourceLimiter = new RateLimiter(SOURCE_RATE_PER_SECOND, SOURCE_BURST);
+
+    // Periodic range check with the predecessor, see syncWithPredecessor()
+    private final ScheduledExecutorService antiEntropy = Executors.newSingleThreadScheduledExecutor();
+
+    // Ticks the timing wheel of leases, apart from range checks that may wait on other servers
+    private final ScheduledExecutorService expiryTimer = Executors.newSingleThreadScheduledExecutor();
+
+    // Sends requests again and times them out
+    private final ScheduledExecutorService requestTimer = Executors.newSingleThreadScheduledExecutor();
+
+    // Outbound data messages, queued per server they go to
+    private final OutboundLinks links = new OutboundLinks(LINK_MAX_MESSAGES, LINK_MAX_BYTES, LINK_LINGER_MICROS,
+            this::messageFailed);
+
+    // Hashes of the stored objects, kept up to date by the store
+    private final MerkleTree merkleTree = new MerkleTree(MAX_OBJECT_AMOUNT);
+    private ExpiringObjectStore objects;
     private int rangeStart;
     private int rangeEnd;
 
+    // Requests served per key, halved on every range check so recent traffic counts
+    // towards this name server's load along with the keys it stores
+    private final AtomicIntegerArray requestCounts = new AtomicIntegerArray(MAX_OBJECT_AMOUNT);
+
+    // Range (exclusive, inclusive) last handed to the predecessor by an entry or a
+    // rebalance. Until handedOffUntil, requests for it that were already on their way
+    // here are sent back to the predecessor instead of around the whole ring.
+    private int handedOffStart;
+    private int handedOffEnd = -1;
+    private long handedOffUntil;
+
     // Successor
     private int successor;
     private InetAddress successorAddr;
@@ -37,28 +243,45 @@ public class NameServer implements Runnable {
     private InetAddress predecessorAddr;
     private int predecessorPort;
 
-    private boolean connected;
-    private volatile boolean isShutdown;// TODO
+    private volatile boolean connected;
+    private volatile boolean isShutdown;
 
-    public NameServer(int nameServerID, int nameServerPort, String bootstrapServerAddr, int bootstrapServerPort) throws UnknownHostException {
+    public NameServer(int nameServerID, int nameServerPort, int clientPort, List<InetSocketAddress> seeds,
+                      ObjectStore objects, boolean indexValues, boolean hedgeLookups)
+            throws UnknownHostException {
         this.nameServerID = nameServerID;
+        this.clientPort = clientPort;
         this.nameServerAddr = InetAddress.getLocalHost();
         this.nameServerPort = nameServerPort;
         this.connected = false;
-        this.bootstrapServerAddr = InetAddress.getByName(bootstrapServerAddr);
-        this.bootstrapServerPort = bootstrapServerPort;
-        this.objects = new TreeMap<>();
+        this.seeds = seeds;
+        this.objects = new ExpiringObjectStore(new MerkleObjectStore(objects, merkleTree, MAX_OBJECT_AMOUNT),
+                MAX_OBJECT_AMOUNT, EXPIRY_TICK_MS);
+        this.indexValues = indexValues;
+        this.hedgeLookups = hedgeLookups;
+
+        for (int i = 0; i < DATA_WORKERS; i++) {
+            dataWorkers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        }
     }
 
     private void messageNewPredecessor() {
         Socket predecessorSocket = null;
         ObjectOutputStream outputStream = null;
-        ObjectInputStream inputStream = null;
 
+        InetAddress addr;
+        int port;
+        arcLock.readLock().lock();
         try {
-            predecessorSocket = new Socket(predecessorAddr, predecessorPort);
+            addr = predecessorAddr;
+            port = predecessorPort;
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        try {
+            predecessorSocket = new Socket(addr, port);
             outputStream = new ObjectOutputStream(predecessorSocket.getOutputStream());
-            inputStream = new ObjectInputStream(predecessorSocket.getInputStream());
 
             outputStream.writeUTF("new_successor");
             outputStream.writeInt(nameServerID);
@@ -66,394 +289,2251 @@ public class NameServer implements Runnable {
             outputStream.writeInt(nameServerPort);
             outputStream.flush();
         } catch (IOException e) {
-            System.err.println("[ERROR] Problem occurred when forwarding request to bootstrap name server.");
+            System.err.println("[ERROR] Problem occurred when notifying predecessor name server.");
         } finally {
             try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
-            try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
             try { if (predecessorSocket != null) predecessorSocket.close(); } catch (IOException e) { }
         }
-}
-
-    private String immediateEntry(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
-        boolean isFirstEntry = inputStream.readBoolean();
-        int bootstrapID;
+    }
 
-        if (isFirstEntry) {
-            rangeStart = inputStream.readInt();
-            rangeEnd = nameServerID;
+    /*
+     * Asks the first reachable seed server to enter this name server into the system.
+     * The seed routes the request around the ring, and this name server's new successor
+     * completes the entry by sending "enter_complete".
+     */
+    public String enter() {
+        if (connected) {
+            return "[ERROR] Already connected.";
+        }
 
-            bootstrapID = inputStream.readInt();
+        for (InetSocketAddress seed : seeds) {
+            Socket seedSocket = null;
+            ObjectOutputStream outputStream = null;
+            ObjectInputStream inputStream = null;
 
-            successor = predecessor = bootstrapID;
-            successorAddr = predecessorAddr = bootstrapServerAddr;
-            successorPort = predecessorPort = bootstrapServerPort;
-        } else {
-            // Must contact predecessor and exchange info
-            predecessor = inputStream.readInt();
-            predecessorAddr = (InetAddress) inputStream.readObject();
-            predecessorPort = inputStream.readInt();
+            try {
+                seedSocket = new Socket(seed.getAddress(), seed.getPort());
+                outputStream = new ObjectOutputStream(seedSocket.getOutputStream());
 
-            bootstrapID = inputStream.readInt();
+                outputStream.writeUTF("enter");
+                outputStream.writeInt(nameServerID);
+                outputStream.writeUTF(nameServerAddr.getHostAddress());
+                outputStream.writeInt(nameServerPort);
+                outputStream.flush();
 
-            successor = bootstrapID;
-            successorAddr = bootstrapServerAddr;
-            successorPort = bootstrapServerPort;
+                // Seed only starts its reply stream after reading the request
+                inputStream = new ObjectInputStream(seedSocket.getInputStream());
 
-            rangeStart = predecessor + 1;
-            rangeEnd = nameServerID;
+                // Check if ID is in use (seed will only compare with its own ID and its
+                // neighbours' IDs, the new successor rejects any other duplicate).
+                if (inputStream.readBoolean()) {
+                    System.err.println("[ERROR] ID is already in use!");
+                    System.exit(1);
+                }
 
-            messageNewPredecessor();
+                connected = true;
+                return null;
+            } catch (IOException e) {
+                // Seed is down or not part of the system yet
+                System.err.println("[ERROR] Unable to enter through seed " + seed + ", trying next seed.");
+            } finally {
+                try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+                try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
+                try { if (seedSocket != null) seedSocket.close(); } catch (IOException e) { }
+            }
         }
-        return buildEntrySuccessMessage(new int[] { bootstrapID });
+
+        return "[ERROR] No seed server could be reached.";
     }
 
-    public String enter() {
-        if (connected) {
-            return "[ERROR] Already connected.";
+    /*
+     * Hands this name server's keys to its successor and leaves the system. The
+     * successor refuses while another change to its arc is under way (its predecessor
+     * joining or exiting), in which case the hand off is retried after a short pause.
+     */
+    public String exit() {
+        for (int attempt = 0; attempt < EXIT_ATTEMPTS; attempt++) {
+            arcLock.writeLock().lock();
+            try {
+                if (!connected) {
+                    return "[ERROR] Already disconnected.";
+                }
+                if (successor == nameServerID) {
+                    return "[ERROR] Last server in the system, no server to hand keys off to.";
+                }
+
+                if (handOffRange()) {
+                    // Requests still sent here are passed on to the successor from now on
+                    connected = false;
+                    changeLog.logExit();
+                    if (predecessor != successor) {
+                        messageSuccessorExited();
+                    }
+                    controlWorkers.execute(this::rerouteWatches);
+                    controlWorkers.execute(this::rerouteIndex);
+                    return buildExitSuccessMessage();
+                }
+            } finally {
+                arcLock.writeLock().unlock();
+            }
+
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(50, 250));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
 
-        String returnMessage = null;
-        Socket bootstrapSocket = null;
+        return "[ERROR] Successor did not take over this name server's keys, try again later.";
+    }
+
+    /*
+     * Sends this name server's keys to its successor along with its predecessor's info.
+     * Keys are only removed once the successor confirms it took over the range.
+     */
+    private boolean handOffRange() {
+        Socket socket = null;
         ObjectOutputStream outputStream = null;
         ObjectInputStream inputStream = null;
 
         try {
-            bootstrapSocket = new Socket(bootstrapServerAddr, bootstrapServerPort);
-            outputStream = new ObjectOutputStream(bootstrapSocket.getOutputStream());
-            inputStream = new ObjectInputStream(bootstrapSocket.getInputStream());
+            socket = new Socket(successorAddr, successorPort);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
 
-            outputStream.writeUTF("enter");
+            outputStream.writeUTF("exit");
             outputStream.writeInt(nameServerID);
-            outputStream.writeUTF(nameServerAddr.getHostAddress());
-            outputStream.writeInt(nameServerPort);
+            outputStream.writeBoolean(false); // Let successor know this is its predecessor
+            outputStream.writeInt(predecessor);
+            outputStream.writeObject(predecessorAddr);
+            outputStream.writeInt(predecessorPort);
+            objects.writeRange(outputStream, predecessor, rangeEnd);
             outputStream.flush();
 
-            // Check if ID is in use (bootstrap will only compare with its own ID and its
-            // successor ID.
-            if (inputStream.readBoolean()) {
-                System.err.println("[ERROR] ID is already in use!");
-                System.exit(1);
-            }
-
-            // If immediately added by bootstrap name server, continue. Else...
-            // Message was forwarded to bootstrap's successor name server, will have
-            // to wait to receive an "enter_success" command from new successor.
-            if (inputStream.readBoolean()) {
-                returnMessage = immediateEntry(inputStream);
-                objects.putAll((NavigableMap<Integer, String>) inputStream.readObject());
+            inputStream = new ObjectInputStream(socket.getInputStream());
+            if (!inputStream.readBoolean()) {
+                return false;
             }
 
-            connected = true;
+            objects.removeRange(predecessor, rangeEnd);
+            return true;
         } catch (IOException e) {
-            System.err.println("[ERROR] Problem occurred when forwarding request to bootstrap name server.");
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            System.exit(1);
+            System.err.println("[ERROR] Problem occurred when sending exit request to name server.");
+            return false;
         } finally {
             try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
             try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
-            try { if (bootstrapSocket != null) bootstrapSocket.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
         }
+    }
+
+    /*
+     * Tells the predecessor its new successor once the keys have been handed off.
+     */
+    private void messageSuccessorExited() {
+        Socket socket = null;
+        ObjectOutputStream outputStream = null;
 
-        return returnMessage;
+        try {
+            socket = new Socket(predecessorAddr, predecessorPort);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+
+            outputStream.writeUTF("exit");
+            outputStream.writeInt(nameServerID);
+            outputStream.writeBoolean(true); // Let predecessor know this is its successor
+            outputStream.writeInt(successor);
+            outputStream.writeObject(successorAddr);
+            outputStream.writeInt(successorPort);
+            outputStream.flush();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Problem occurred when notifying predecessor name server.");
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
+        }
     }
 
-    public String exit() {
+    /*
+     * Looks up a key in local storage, if key is not in key local key range, looks for it
+     * in the distributed system. Visited servers are only tracked when traced is set.
+     * CALLED BY NAME SERVER UI.
+     */
+    public String lookupKey(final int key, final boolean traced) {
         if (!connected) {
-            return "[ERROR] Already disconnected.";
+            return "Name server is not part of the system.";
+        }
+        if (!rangeCheck(key)) {
+            return "Key must be between [0, " + MAX_OBJECT_AMOUNT + "]!";
         }
 
-        String returnMessage = null;
+        final HopTrace trace = traced ? new HopTrace(nameServerID) : null;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                // Key should be stored on this name server, immediately reply to user
+                return lookupKeyResponse(key, VersionedValue.value(objects.get(key)), trace);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
 
-        Socket socket = null;
-        ObjectOutputStream outputStream = null;
-        ObjectInputStream inputStream = null;
+        if (negativeCache.contains(key)) {
+            // Recently found missing, skip the round trip
+            return lookupKeyResponse(key, null, trace);
+        }
 
-        try {
-            if (successor == predecessor) {
-                // Only name server in system, contact bootstrap
-                socket = new Socket(bootstrapServerAddr, bootstrapServerPort);
-                outputStream = new ObjectOutputStream(socket.getOutputStream());
-                inputStream = new ObjectInputStream(socket.getInputStream());
+        // Pass lookup message to successor
+        forwardRequest("lookup", key, null, 0, 0, trace, this::printReply);
+        return null;
+    }
 
-                outputStream.writeUTF("exit");
-                moveStoredObjects(outputStream, rangeStart, rangeEnd);
-                returnMessage = buildExitSuccessMessage();
-            } else {
-                // Contact predecessor
-                socket = new Socket(predecessorAddr, predecessorPort);
-                outputStream = new ObjectOutputStream(socket.getOutputStream());
-                inputStream = new ObjectInputStream(socket.getInputStream());
+    /*
+     * Inserts a value in local storage, if local storage is not in key range, inserts it
+     * in the distributed system. Visited servers are only tracked when traced is set.
+     * CALLED BY NAME SERVER UI.
+     */
+    public String insertValue(final int key, final byte[] value, final boolean traced) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+        if (!rangeCheck(key)) {
+            return "Key must be between [0, " + MAX_OBJECT_AMOUNT + "]!";
+        }
 
-                outputStream.writeUTF("exit");
-                outputStream.writeBoolean(true); // Let successor know this is its predecessor
-                outputStream.writeInt(successor);
-                outputStream.writeObject(successorAddr);
-                outputStream.writeInt(successorPort);
+        final HopTrace trace = traced ? new HopTrace(nameServerID) : null;
+        boolean inserted = false;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                // Store object on this name server
+                storeValue(key, value, 0);
+                inserted = true;
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
 
-                try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
-                try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
-                try { if (socket != null) socket.close(); } catch (IOException e) { }
+        if (inserted) {
+            publishChange(key, value);
+            return insertValueResponse(key, value, nameServerID, trace);
+        }
 
-                // Contact successor and transfer key/values
-                socket = new Socket(successorAddr, successorPort);
-                outputStream = new ObjectOutputStream(socket.getOutputStream());
-                inputStream = new ObjectInputStream(socket.getInputStream());
+        // Pass insert message to successor
+        forwardRequest("insert", key, value, 0, 0, trace, reply -> printInsertReply(reply, value));
+        return null;
+    }
+
+    /*
+     * Deletes a key in local storage, if local storage is not in key range, deletes it in
+     * the distributed system. Visited servers are only tracked when traced is set.
+     * CALLED BY NAME SERVER UI.
+     */
+    public String deleteKey(final int key, final boolean traced) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+        if (!rangeCheck(key)) {
+            return "Key must be between [0, " + MAX_OBJECT_AMOUNT + "]!";
+        }
 
-                outputStream.writeUTF("exit");
-                outputStream.writeBoolean(false); // Let predecessor know this is its successor
-                outputStream.writeInt(predecessor);
-                outputStream.writeObject(predecessorAddr);
-                outputStream.writeInt(predecessorPort);
+        final HopTrace trace = traced ? new HopTrace(nameServerID) : null;
+        boolean owned = false;
+        boolean deleted = false;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                // Key should be stored on this name server, immediately reply to user
+                owned = true;
+                deleted = objects.remove(key);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
 
-                moveStoredObjects(outputStream, rangeStart, rangeEnd);
+        if (deleted) {
+            publishChange(key, null);
+        }
+        if (owned) {
+            return deleteKeyResponse(key, deleted, trace);
+        }
 
-                returnMessage = buildExitSuccessMessage();
+        // Pass delete message to successor
+        forwardRequest("delete", key, null, 0, 0, trace, this::printReply);
+        return null;
+    }
 
+    /*
+     * Looks up the keys holding a value in the reverse index, on this name server if the
+     * value's slot is in its range, in the distributed system otherwise. The keys found
+     * are confirmed before they are printed. Visited servers are only tracked when traced
+     * is set.
+     * CALLED BY NAME SERVER UI.
+     */
+    public String lookupValue(final byte[] value, final boolean traced) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+        final long digest = ReverseIndex.digest(value);
+        final int slot = ReverseIndex.slot(digest, MAX_OBJECT_AMOUNT);
+        final HopTrace trace = traced ? new HopTrace(nameServerID) : null;
+        List<Integer> candidates = null;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(slot, rangeStart, rangeEnd)) {
+                // Value's part of the index is held here
+                candidates = reverseIndex.keys(digest);
             }
-            connected = false;
-        } catch (IOException e) {
-            System.err.println("[ERROR] Problem occurred when sending exit request to name server.");
         } finally {
-            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
-            try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
-            try { if (socket != null) socket.close(); } catch (IOException e) { }
+            arcLock.readLock().unlock();
+        }
+
+        if (candidates != null) {
+            confirmKeys(value, candidates, keys -> nameServerUI.printMessage(lookupValueResponse(value, keys, trace)));
+            return null;
+        }
+
+        // Pass reverse lookup message to successor
+        forwardRequest("rlookup", slot, value, 0, 0, trace, reply -> printLookupValueReply(reply, value));
+        return null;
+    }
+
+    /*
+     * Gathers the stats of every server in the ring, all asked at once (see RingStats).
+     * CALLED BY NAME SERVER UI.
+     */
+    public String ringStats() {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+
+        List<RingStats.NodeStats> nodes = RingStats.collect(localStats(), ringView);
+        ringView.clear();
+        for (RingStats.NodeStats node : nodes) {
+            ringView.add(node.getAddress());
+        }
+        return RingStats.report(nodes, MAX_OBJECT_AMOUNT);
+    }
+
+    /*
+     * Loads a file of "<key> <value>" lines into the distributed system, each key going
+     * straight to the server owning it (see BulkLoader).
+     * CALLED BY NAME SERVER UI.
+     */
+    public String loadFile(final String path) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+
+        long startedAt = System.currentTimeMillis();
+        try {
+            byte[][] values = BulkLoader.parse(Paths.get(path), 0, MAX_OBJECT_AMOUNT);
+            int loaded = BulkLoader.load(values, nameServerAddr, nameServerPort);
+            return "Loaded " + loaded + " of " + BulkLoader.count(values) + " keys from " + path + " in " +
+                    (System.currentTimeMillis() - startedAt) + "ms.";
+        } catch (IOException e) {
+            return "[ERROR] Could not load " + path + ": " + e.getMessage();
+        }
+    }
+
+    /*
+     * Returns a formatted lookup response String.
+     */
+    private String lookupKeyResponse(final int key, final byte[] object, final HopTrace trace) {
+        String response = "Key: " + key + "\n";
+        if (object == null) {
+            response += "Key not found";
+        } else {
+            response += "Value: " + valueText(object);
+        }
+        if (trace != null) {
+            response += "\nVisited Servers: " + trace;
         }
 
-        return returnMessage;
+        return response;
     }
 
-    private void messageBootstrap(String command, int key, int[] visitedServers) {
-        messageAny(command, key, null, visitedServers, bootstrapServerAddr, bootstrapServerPort);
+    /*
+     * Returns a formatted insert response String. Value can be null if it is not known.
+     */
+    private String insertValueResponse(final int key, byte[] value, final int serverID, final HopTrace trace) {
+        String response = "Key: " + key + (value != null ? " with value: " + valueText(value) : "") + "\n" +
+                "Inserted on Server: " + serverID;
+        if (trace != null) {
+            response += "\nVisited Servers: " + trace;
+        }
+
+        return response;
     }
 
-    private void messageBootstrap(String command, int key, String value, int[] visitedServers) {
-        messageAny(command, key, value, visitedServers, bootstrapServerAddr, bootstrapServerPort);
+    /*
+     * Returns a formatted reverse lookup response String.
+     */
+    private String lookupValueResponse(final byte[] value, final List<Integer> keys, final HopTrace trace) {
+        String response = "Value: " + valueText(value) + "\n";
+        if (keys.isEmpty()) {
+            response += "No keys found";
+        } else {
+            response += "Keys: " + keys;
+        }
+        if (trace != null) {
+            response += "\nVisited Servers: " + trace;
+        }
+
+        return response;
     }
 
-    private void forwardCommand(String command, int key, int[] visitedServers) {
-        messageAny(command, key, null, visitedServers, successorAddr, successorPort);
+    /*
+     * Returns a formatted delete response String.
+     */
+    private String deleteKeyResponse(final int key, final boolean deleted, final HopTrace trace) {
+        String response = "Key: " + key + "\n";
+        if (deleted) {
+            response += "Successful deletion";
+        } else {
+            response += "Key not found";
+        }
+        if (trace != null) {
+            response += "\nVisited Servers: " + trace;
+        }
+
+        return response;
     }
 
-    private void forwardCommand(String command, int key, String value, int[] visitedServers) {
-        messageAny(command, key, value, visitedServers, successorAddr, successorPort);
+    /*
+     * Returns a formatted response String for a reply to a request this name server sent
+     * into the system. Replies with the request's own command (lookup, insert, delete)
+     * mean the key's owner did not find it, or the request went around the whole ring and
+     * came back.
+     */
+    private String replyResponse(Message reply) {
+        final int key = reply.getKey();
+        final HopTrace trace = reply.getTrace();
+
+        switch (reply.getCommand()) {
+            case "lookup":
+                return lookupKeyResponse(key, null, trace);
+            case "lookup_found":
+                return lookupKeyResponse(key, reply.getValue(), trace);
+            case "insert":
+                // Should not happen, for debugging purposes!
+                return "Insert failed, message reached back to entry name server.";
+            case "insert_found":
+                return insertValueResponse(key, reply.getValue(), reply.getServerID(), trace);
+            case "delete":
+                return deleteKeyResponse(key, false, trace);
+            case "delete_found":
+                return deleteKeyResponse(key, true, trace);
+            case "busy":
+                return "Request for key " + key + " turned away by Name Server " + reply.getServerID() +
+                        ", system is busy. Try again later.";
+            case "timeout":
+                return "Request for key " + key + " timed out, no reply within " + REQUEST_DEADLINE_MS / 1000 +
+                        " seconds. Try again later.";
+            default:
+                return "Unknown reply received: " + reply.getCommand() + ".";
+        }
     }
 
     /*
-     * Sends command message to specified host. Value can be null if not needed for command.
+     * Prints the reply to a request sent from the UI.
      */
-    private void messageAny(String command, int key, String value, int[] visitedServers, InetAddress addr, int port) {
-        Socket successorSocket = null;
-        ObjectOutputStream outputStream = null;
-        ObjectInputStream inputStream = null;
+    private void printReply(Message reply) {
+        nameServerUI.printMessage(replyResponse(reply));
+    }
+
+    /*
+     * Prints the reply to an insert sent from the UI. Insert replies do not carry the
+     * value back, so the value that was sent is printed.
+     */
+    private void printInsertReply(Message reply, byte[] value) {
+        if (reply.getCommand().equals("insert_found")) {
+            nameServerUI.printMessage(insertValueResponse(reply.getKey(), value, reply.getServerID(), reply.getTrace()));
+        } else {
+            printReply(reply);
+        }
+    }
+
+    /*
+     * Prints the reply to a reverse lookup sent from the UI, once the keys found are
+     * confirmed. Replies carry the keys found, so the value that was looked up is printed.
+     */
+    private void printLookupValueReply(Message reply, byte[] value) {
+        if (reply.getCommand().equals("rlookup_found")) {
+            confirmKeys(value, ReverseIndex.decodeKeys(reply.getValue()),
+                    keys -> nameServerUI.printMessage(lookupValueResponse(value, keys, reply.getTrace())));
+        } else if (reply.getCommand().equals("rlookup")) {
+            nameServerUI.printMessage(lookupValueResponse(value, List.of(), reply.getTrace()));
+        } else {
+            printReply(reply);
+        }
+    }
+
+    /*
+     * Returns a value as text for printing, values too long to print are shown by size.
+     */
+    private String valueText(byte[] value) {
+        if (value.length > MAX_PRINTED_VALUE) {
+            return "<" + value.length + " bytes>";
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Sends a new request to the successor, with this name server as its reply-to
+     * address. onReply is called with the reply once it arrives.
+     */
+    private void forwardRequest(String command, int key, byte[] value, long version, long ttl, HopTrace trace,
+                                Consumer<Message> onReply) {
+        if (command.equals("insert") || command.equals("cas")) {
+            negativeCache.invalidate(key);
+        }
+        final int cacheVersion = negativeCache.version(key);
+
+        Consumer<Message> handler = reply -> {
+            cacheReply(reply, cacheVersion);
+            onReply.accept(reply);
+        };
+        if (command.equals("lookup") && trace == null) {
+            // Completed along with the lookup for the key already in flight, if any
+            handler = lookupFlights.join(key, handler);
+            if (handler == null) return;
+        }
+
+        int requestID = nextRequestID.incrementAndGet();
+        final Consumer<Message> waiting = handler;
+        final long sentAt = System.nanoTime();
+        pendingRequests.put(requestID, reply -> {
+            if (!reply.getCommand().equals("timeout")) retryPolicy.recordLatency(System.nanoTime() - sentAt);
+            waiting.accept(reply);
+        });
+
+        Message request = new Message(command, requestID, nameServerAddr, nameServerPort, key, value, version, ttl,
+                trace);
+        retryPolicy.deposit();
+        requestTimer.schedule(() -> expireRequest(request), REQUEST_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        sendRequest(request);
+    }
+
+    /*
+     * Sends a request that entered the system through this name server on. With hedging
+     * on, lookups are sent again once they took longer than most; requests that could not
+     * be sent are sent again by messageFailed(). Only lookups are hedged, as a write that
+     * was sent may have been carried out already even without a reply. Every copy has the
+     * same request ID, so the first reply completes the request and later ones are dropped.
+     */
+    private void sendRequest(Message request) {
+        forwardCommand(request);
+        if (hedgeLookups && (request.getCommand().equals("lookup") || request.getCommand().equals("rlookup"))) {
+            resendRequest(request, retryPolicy.hedgeMillis());
+        }
+    }
 
+    /*
+     * Sends a request again after delay, unless it was answered by then or the retry
+     * budget is used up (its deadline still answers it then).
+     */
+    private void resendRequest(Message request, long delay) {
         try {
-            successorSocket = new Socket(addr, port);
-            outputStream = new ObjectOutputStream(successorSocket.getOutputStream());
-            inputStream = new ObjectInputStream(successorSocket.getInputStream());
+            requestTimer.schedule(() -> {
+                if (pendingRequests.containsKey(request.getRequestID()) && retryPolicy.tryRetry()) {
+                    sendRequest(request);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down
+        }
+    }
 
-            outputStream.writeUTF(command);
-            outputStream.writeInt(key);
-            if (value != null) outputStream.writeUTF(value);
-            outputStream.writeObject(visitedServers);
-            outputStream.flush();
-        } catch (IOException e) {
-            if (addr == bootstrapServerAddr) {
-                System.err.println("[ERROR] Problem occurred when forwarding request to bootstrap name server.");
-            } else {
-                System.err.println("[ERROR] Problem occurred when forwarding request to name server.");
-            }
-        } finally {
-            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
-            try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
-            try { if (successorSocket != null) successorSocket.close(); } catch (IOException e) { }
+    /*
+     * Answers a request that got no reply before its deadline.
+     */
+    private void expireRequest(Message request) {
+        if (pendingRequests.containsKey(request.getRequestID())) {
+            completeRequest(request.reply("timeout", nameServerID, null));
         }
     }
 
-    private void forwardCommand(String command, int newNameServerID, InetAddress newNameServerAddr,
-                                int newNameServerPort, int[] visitedServers) {
-        Socket successorSocket = null;
-        ObjectOutputStream outputStream = null;
-        ObjectInputStream inputStream = null;
+    /*
+     * Updates the negative cache from a reply. Replies with the request's own command and
+     * successful deletes mean the key does not exist (anymore).
+     */
+    private void cacheReply(Message reply, int cacheVersion) {
+        switch (reply.getCommand()) {
+            case "lookup":
+            case "delete":
+            case "delete_found":
+                negativeCache.add(reply.getKey(), cacheVersion);
+                break;
+            case "lookup_found":
+            case "insert_found":
+            case "cas_found":
+                negativeCache.invalidate(reply.getKey());
+                break;
+        }
+    }
+
+    /*
+     * Sends a request from a client connected to the client port into the system.
+     * CALLED BY CLIENT SERVER.
+     */
+    @Override
+    public String submitRequest(String command, int key, byte[] value, long version, long ttl, boolean traced,
+                                Consumer<Message> onReply) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+        if (!rangeCheck(key)) {
+            return "Key must be between [0, " + MAX_OBJECT_AMOUNT + "]!";
+        }
 
+        final HopTrace trace = traced ? new HopTrace(nameServerID) : null;
+        final Message request = new Message(command, 0, nameServerAddr, nameServerPort, key, value, version, ttl,
+                trace);
+        Message reply = null;
+        arcLock.readLock().lock();
         try {
-            successorSocket = new Socket(successorAddr, successorPort);
-            outputStream = new ObjectOutputStream(successorSocket.getOutputStream());
-            inputStream = new ObjectInputStream(successorSocket.getInputStream());
+            if (betweenRange(key, rangeStart, rangeEnd)) {
+                // Key should be stored on this name server, immediately reply to client
+                reply = executeRequest(request);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (reply == null && command.equals("lookup") && negativeCache.contains(key)) {
+            // Recently found missing, skip the round trip
+            reply = request.reply("lookup", nameServerID, null);
+        }
+
+        if (reply != null) {
+            notifyChange(request, reply);
+            onReply.accept(reply);
+            return null;
+        }
+
+        forwardRequest(command, key, value, version, ttl, trace, onReply);
+        return null;
+    }
+
+    /*
+     * Sends a reverse lookup from a client connected to the client port into the system,
+     * to the server owning the value's slot, and confirms the keys it finds before
+     * replying. CALLED BY CLIENT SERVER.
+     */
+    @Override
+    public String reverseLookup(byte[] value, Consumer<Message> onReply) {
+        int slot = ReverseIndex.slot(ReverseIndex.digest(value), MAX_OBJECT_AMOUNT);
+        return submitRequest("rlookup", slot, value, 0, 0, false, reply -> {
+            if (!reply.getCommand().equals("rlookup_found")) {
+                onReply.accept(reply);
+                return;
+            }
+
+            confirmKeys(value, ReverseIndex.decodeKeys(reply.getValue()), keys -> onReply.accept(keys.isEmpty()
+                    ? reply.reply("rlookup", reply.getServerID(), null)
+                    : reply.reply("rlookup_found", reply.getServerID(), ReverseIndex.encodeKeys(keys))));
+        });
+    }
+
+    /*
+     * Looks up each key the reverse index found for a value and passes on the ones that
+     * still hold it, lowest first. The index only keeps digests, so a key found may hold
+     * another value with the same digest, or have changed since its entry was published.
+     */
+    private void confirmKeys(byte[] value, List<Integer> candidates, Consumer<List<Integer>> onConfirmed) {
+        if (candidates.isEmpty()) {
+            onConfirmed.accept(candidates);
+            return;
+        }
+
+        Set<Integer> confirmed = ConcurrentHashMap.newKeySet();
+        AtomicInteger pending = new AtomicInteger(candidates.size());
+        for (int key : candidates) {
+            Consumer<Message> onLookup = lookup -> {
+                if (lookup.getCommand().equals("lookup_found") && Arrays.equals(lookup.getValue(), value)) {
+                    confirmed.add(key);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    List<Integer> keys = new ArrayList<>(confirmed);
+                    keys.sort(null);
+                    onConfirmed.accept(keys);
+                }
+            };
+
+            if (submitRequest("lookup", key, null, 0, 0, false, onLookup) != null) {
+                // Not part of the system anymore, the key cannot be confirmed
+                onLookup.accept(new Message("lookup", 0, nameServerAddr, nameServerPort, key, null, null));
+            }
+        }
+    }
+
+    /*
+     * Gathers ring-wide stats for a client connected to the client port, on the control
+     * pool since other servers are waited on. CALLED BY CLIENT SERVER.
+     */
+    @Override
+    public String ringStats(Consumer<String> onReport) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+
+        controlWorkers.execute(() -> onReport.accept(ringStats()));
+        return null;
+    }
+
+    /*
+     * Registers a watch for a client connected to the client port with the servers that
+     * own its keys. CALLED BY CLIENT SERVER.
+     */
+    @Override
+    public String watch(int watchID, int firstKey, int lastKey, Consumer<Message> onChange) {
+        if (!connected) {
+            return "Name server is not part of the system.";
+        }
+        if (!rangeCheck(firstKey) || !rangeCheck(lastKey)) {
+            return "Key must be between [0, " + MAX_OBJECT_AMOUNT + "]!";
+        }
+
+        Watches.Watch watch = new Watches.Watch(nameServerAddr, nameServerPort, watchID, firstKey, lastKey);
+        watchListeners.put(watchID, onChange);
+        clientWatches.put(watchID, watch);
+        routeWatch(watch, 0);
+        return null;
+    }
+
+    /*
+     * Returns the change log clients tail. CALLED BY CLIENT SERVER.
+     */
+    @Override
+    public ChangeLog changeLog() {
+        return changeLog;
+    }
+
+    /*
+     * Stops renewing a watch. The servers holding it drop it once its lease runs out,
+     * changes they send until then are ignored. CALLED BY CLIENT SERVER.
+     */
+    @Override
+    public boolean unwatch(int watchID) {
+        watchListeners.remove(watchID);
+        return clientWatches.remove(watchID) != null;
+    }
+
+    /*
+     * Registers the parts of a watch that fall in this name server's range, starting
+     * from its first key, and passes the rest on to the successor. A rest that starts in
+     * a range just handed to the predecessor goes back to it instead.
+     */
+    private void routeWatch(Watches.Watch watch, int hops) {
+        Watches.Watch rest = watch;
+        InetAddress addr;
+        int port;
+        arcLock.readLock().lock();
+        try {
+            while (rest != null && connected && betweenRange(rest.getFirstKey(), rangeStart, rangeEnd)) {
+                // Range may wrap around past the highest key, leaving a second part at key 0
+                int ownedLast = rest.getFirstKey() <= rangeEnd ? rangeEnd : MAX_OBJECT_AMOUNT - 1;
+                watches.renew(rest.part(rest.getFirstKey(), Math.min(rest.getLastKey(), ownedLast)));
+                rest = rest.getLastKey() > ownedLast ? rest.part(ownedLast + 1, rest.getLastKey()) : null;
+            }
+            if (rest == null) {
+                return;
+            }
+
+            if (isHandedOff(rest.getFirstKey())) {
+                addr = predecessorAddr;
+                port = predecessorPort;
+            } else {
+                addr = successorAddr;
+                port = successorPort;
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (hops >= MAX_WATCH_HOPS) {
+            System.err.println("[ERROR] No name server found for watched keys " + rest.getFirstKey() + "-" +
+                    rest.getLastKey() + ".");
+            return;
+        }
+
+        Socket socket = null;
+        ObjectOutputStream outputStream = null;
+
+        try {
+            socket = new Socket(addr, port);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+
+            outputStream.writeUTF("watch");
+            outputStream.writeInt(hops + 1);
+            rest.write(outputStream);
+            outputStream.flush();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Problem occurred when passing watch on to name server.");
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
+        }
+    }
+
+    /*
+     * Renews the watches clients registered through this name server, registering them
+     * again wherever they were lost.
+     */
+    private void renewWatches() {
+        if (!connected) {
+            return;
+        }
+
+        for (Watches.Watch watch : clientWatches.values()) {
+            routeWatch(watch, 0);
+        }
+    }
+
+    /*
+     * Passes on the watches registered here for keys this name server no longer owns,
+     * after part of its range moved to another server.
+     */
+    private void rerouteWatches() {
+        for (Watches.Watch watch : watches.all()) {
+            boolean owned;
+            arcLock.readLock().lock();
+            try {
+                owned = connected && ownsAll(watch.getFirstKey(), watch.getLastKey());
+            } finally {
+                arcLock.readLock().unlock();
+            }
+
+            if (!owned) {
+                watches.remove(watch);
+                routeWatch(watch, 0);
+            }
+        }
+    }
+
+    /*
+     * Sends a change of a key in this name server's range to the servers whose clients
+     * watch it. Value is null if the key was deleted.
+     */
+    private void notifyWatchers(int key, byte[] value) {
+        for (Watches.Watch watch : watches.matching(key)) {
+            messageAny(new Message("watch_event", watch.getWatchID(), nameServerAddr, nameServerPort, key, value, null),
+                    watch.getAddr(), watch.getPort());
+        }
+    }
+
+    /*
+     * Publishes a change of a key in this name server's range to the change log, its
+     * watchers and the reverse index. Value is null if the key was deleted.
+     */
+    private void publishChange(int key, byte[] value) {
+        changeLog.logChange(key, value);
+        notifyWatchers(key, value);
+        indexValue(key, value);
+    }
+
+    /*
+     * Logs this name server's range to the change log, along with the keys it took over.
+     * Called with the arc lock held for writing, once the keys taken over are stored.
+     */
+    private void logRange() {
+        changeLog.logRange(rangeStart, rangeEnd, key -> VersionedValue.value(objects.get(key)));
+    }
+
+    /*
+     * Replaces the reverse index entry of a key's old value with one for its new value,
+     * none if deleted. The entries are sent from the control pool, so the change does not
+     * wait on the servers holding them.
+     */
+    private void indexValue(int key, byte[] value) {
+        if (!indexValues) {
+            return;
+        }
+
+        long digest = value != null ? ReverseIndex.digest(value) : 0;
+        long previous;
+        synchronized (indexedDigests) {
+            previous = indexedDigests[key];
+            indexedDigests[key] = digest;
+        }
+        if (previous == digest) {
+            return;
+        }
+
+        if (previous != 0) {
+            controlWorkers.execute(() -> routeIndex(List.of(new ReverseIndex.Entry(previous, key)), false, 0));
+        }
+        if (digest != 0) {
+            controlWorkers.execute(() -> routeIndex(List.of(new ReverseIndex.Entry(digest, key)), true, 0));
+        }
+    }
+
+    /*
+     * Returns the listener that keeps the digests of values moved here with a range, for
+     * the reverse index, as they are stored.
+     */
+    private ObjectStore.EntryListener indexer() {
+        if (!indexValues) {
+            return ObjectStore.EntryListener.NONE;
+        }
+
+        return ReverseIndex.digester((key, digest) -> {
+            synchronized (indexedDigests) {
+                indexedDigests[key] = digest;
+            }
+        });
+    }
+
+    /*
+     * Publishes the reverse index entries of every key stored here again, all in one
+     * batch, from the digests kept as keys changed or moved here, so no value is read.
+     * Stops publishing the keys no longer owned (their new owner does). Also passes on
+     * entries held here for slots this name server no longer owns.
+     */
+    private void renewIndex() {
+        rerouteIndex();
+        if (!connected || !indexValues) {
+            return;
+        }
+
+        List<ReverseIndex.Entry> published = new ArrayList<>();
+        arcLock.readLock().lock();
+        try {
+            synchronized (indexedDigests) {
+                for (int key = 0; key < MAX_OBJECT_AMOUNT; key++) {
+                    if (!betweenRange(key, rangeStart, rangeEnd)) {
+                        indexedDigests[key] = 0;
+                    } else if (indexedDigests[key] != 0) {
+                        published.add(new ReverseIndex.Entry(indexedDigests[key], key));
+                    }
+                }
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (!published.isEmpty()) routeIndex(published, true, 0);
+    }
+
+    /*
+     * Passes on the reverse index entries held here for slots this name server no longer
+     * owns, after part of its range moved to another server.
+     */
+    private void rerouteIndex() {
+        List<ReverseIndex.Entry> moved = new ArrayList<>();
+        arcLock.readLock().lock();
+        try {
+            for (ReverseIndex.Entry entry : reverseIndex.all()) {
+                int slot = ReverseIndex.slot(entry.getDigest(), MAX_OBJECT_AMOUNT);
+                if (!connected || !betweenRange(slot, rangeStart, rangeEnd)) {
+                    moved.add(entry);
+                }
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        for (ReverseIndex.Entry entry : moved) {
+            reverseIndex.remove(entry);
+        }
+        if (!moved.isEmpty()) routeIndex(moved, true, 0);
+    }
+
+    /*
+     * Adds (or removes) the reverse index entries whose slot is in this name server's range
+     * and passes the others on to the successor in one batch. Entries for a range just
+     * handed to the predecessor go back to it instead.
+     */
+    private void routeIndex(List<ReverseIndex.Entry> entries, boolean add, int hops) {
+        List<ReverseIndex.Entry> toSuccessor = new ArrayList<>();
+        List<ReverseIndex.Entry> toPredecessor = new ArrayList<>();
+        InetAddress succAddr;
+        int succPort;
+        InetAddress predAddr;
+        int predPort;
+        arcLock.readLock().lock();
+        try {
+            if (!connected) {
+                // Not part of the system anymore, the entries' owners publish them again
+                return;
+            }
+
+            for (ReverseIndex.Entry entry : entries) {
+                int slot = ReverseIndex.slot(entry.getDigest(), MAX_OBJECT_AMOUNT);
+                if (betweenRange(slot, rangeStart, rangeEnd)) {
+                    if (add) reverseIndex.renew(entry);
+                    else reverseIndex.remove(entry);
+                } else if (isHandedOff(slot)) {
+                    toPredecessor.add(entry);
+                } else {
+                    toSuccessor.add(entry);
+                }
+            }
+            succAddr = successorAddr;
+            succPort = successorPort;
+            predAddr = predecessorAddr;
+            predPort = predecessorPort;
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        sendIndex(toPredecessor, add, hops, predAddr, predPort);
+        sendIndex(toSuccessor, add, hops, succAddr, succPort);
+    }
+
+    private void sendIndex(List<ReverseIndex.Entry> entries, boolean add, int hops, InetAddress addr, int port) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (hops >= MAX_INDEX_HOPS) {
+            System.err.println("[ERROR] No server found for " + entries.size() + " reverse index entries.");
+            return;
+        }
+
+        Socket socket = null;
+        ObjectOutputStream outputStream = null;
+
+        try {
+            socket = new Socket(addr, port);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+
+            outputStream.writeUTF("index");
+            outputStream.writeInt(hops + 1);
+            outputStream.writeBoolean(add);
+            outputStream.writeInt(entries.size());
+            for (ReverseIndex.Entry entry : entries) {
+                entry.write(outputStream);
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Problem occurred when passing reverse index entries on.");
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
+        }
+    }
+
+    /*
+     * Publishes the change a request carried out here made, if any.
+     */
+    private void notifyChange(Message request, Message reply) {
+        if (reply.getCommand().equals("insert_found")) {
+            publishChange(request.getKey(), request.getValue());
+        } else if (reply.getCommand().equals("delete_found")) {
+            publishChange(request.getKey(), null);
+        } else if (reply.getCommand().equals("cas_found") && (request.getValue() != null || reply.getVersion() != 0)) {
+            // Conditional insert, or conditional delete of a stored key
+            publishChange(request.getKey(), request.getValue());
+        }
+    }
+
+    /*
+     * Stores a value under the key's next version and returns that version. Versions are
+     * read and written with the store locked, so two writes never get the same version.
+     * The value expires after ttl milliseconds, never if ttl is 0.
+     */
+    private long storeValue(int key, byte[] value, long ttl) {
+        synchronized (objects) {
+            long version = VersionedValue.nextVersion(objects.get(key));
+            long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+            objects.put(key, VersionedValue.record(version, expiresAt, value));
+            return version;
+        }
+    }
+
+    /*
+     * Removes the keys whose lease ran out and tells their watchers, as if deleted. Runs
+     * every EXPIRY_TICK_MS.
+     */
+    private void expireKeys() {
+        List<Integer> expired = objects.expire(System.currentTimeMillis());
+        for (int key : expired) {
+            publishChange(key, null);
+        }
+
+        if (!expired.isEmpty()) {
+            nameServerUI.printMessage("Leases ran out for " + expired.size() + " keys: " + expired + ".");
+        }
+    }
+
+    /*
+     * Carries out a request for a key in this name server's range and returns the reply.
+     * A reply with the request's own command means the key was not found.
+     */
+    private Message executeRequest(Message request) {
+        final int key = request.getKey();
+        requestCounts.incrementAndGet(key);
+
+        if (request.getCommand().equals("lookup")) {
+            byte[] record = objects.get(key);
+            return request.reply(record != null ? "lookup_found" : "lookup", nameServerID, VersionedValue.value(record),
+                    VersionedValue.version(record));
+        } else if (request.getCommand().equals("insert")) {
+            long version = storeValue(key, request.getValue(), request.getTtl());
+            return request.reply("insert_found", nameServerID, null, version);
+        } else if (request.getCommand().equals("cas")) {
+            synchronized (objects) {
+                long current = VersionedValue.version(objects.get(key));
+                if (current != request.getVersion()) {
+                    return request.reply("cas", nameServerID, null, current);
+                }
+
+                if (request.getValue() == null) {
+                    objects.remove(key);
+                    return request.reply("cas_found", nameServerID, null, current);
+                }
+                return request.reply("cas_found", nameServerID, null, storeValue(key, request.getValue(), 0));
+            }
+        } else if (request.getCommand().equals("rlookup")) {
+            // Key is the slot of the value looked up, the keys found are confirmed by the
+            // server the request entered through
+            List<Integer> keys = reverseIndex.keys(ReverseIndex.digest(request.getValue()));
+            if (keys.isEmpty()) {
+                return request.reply("rlookup", nameServerID, null);
+            }
+            return request.reply("rlookup_found", nameServerID, ReverseIndex.encodeKeys(keys));
+        } else if (request.getCommand().equals("renew")) {
+            synchronized (objects) {
+                byte[] record = objects.get(key);
+                if (record == null) {
+                    return request.reply("renew", nameServerID, null);
+                }
+
+                // Lease only, the value and its version stay as they are
+                objects.put(key, VersionedValue.renewed(record, System.currentTimeMillis() + request.getTtl()));
+                return request.reply("renew_found", nameServerID, null, VersionedValue.version(record));
+            }
+        } else {
+            boolean deleted = objects.remove(key);
+            return request.reply(deleted ? "delete_found" : "delete", nameServerID, null);
+        }
+    }
+
+    /*
+     * Carries out a request that came back to this name server, if its key moved into
+     * this name server's range while the request was on its way. If the key moved on to
+     * another server instead, the request is sent around the ring again (at most
+     * MAX_REQUEST_RETURNS times) and null is returned. After that the request is returned
+     * as is, as not found.
+     */
+    private Message returnedRequest(Message request) {
+        Message reply = null;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(request.getKey(), rangeStart, rangeEnd)) {
+                reply = executeRequest(request);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (reply == null) {
+            if (returnedRequests.merge(request.getRequestID(), 1, Integer::sum) <= MAX_REQUEST_RETURNS) {
+                forwardCommand(request);
+                return null;
+            }
+            return request;
+        }
+        notifyChange(request, reply);
+        return reply;
+    }
+
+    /*
+     * Hands a reply to whoever is waiting on its request. Returns false if no request
+     * with the reply's ID is pending.
+     */
+    private boolean completeRequest(Message reply) {
+        Consumer<Message> handler = pendingRequests.remove(reply.getRequestID());
+        returnedRequests.remove(reply.getRequestID());
+        failedSends.remove(reply.getRequestID());
+        if (handler == null) {
+            return false;
+        }
+
+        handler.accept(reply);
+        return true;
+    }
+
+    /*
+     * Returns true if the request entered the system through this name server.
+     */
+    private boolean isOwnRequest(Message request) {
+        return request.getReplyPort() == nameServerPort && request.getReplyAddr().equals(nameServerAddr);
+    }
+
+    /*
+     * Replies directly to the server the request entered the system through. Value can
+     * be null if not needed for the reply.
+     */
+    private void replyToRequest(Message request, String replyCommand, byte[] value) {
+        replyToRequest(request, replyCommand, value, 0);
+    }
+
+    /*
+     * Replies directly to the server the request entered the system through, with the
+     * version of the key's value.
+     */
+    private void replyToRequest(Message request, String replyCommand, byte[] value, long version) {
+        Message reply = request.reply(replyCommand, nameServerID, value, version);
+        messageAny(reply, request.getReplyAddr(), request.getReplyPort());
+    }
+
+    /*
+     * Answers a request that joined a lookup in flight from this name server with that
+     * lookup's reply.
+     */
+    private void relayReply(Message request, Message reply) {
+        Message relayed = request.reply(reply.getCommand(), reply.getServerID(), reply.getValue(), reply.getVersion());
+        messageAny(relayed, request.getReplyAddr(), request.getReplyPort());
+    }
+
+    /*
+     * Passes a request on to the successor, or back to the predecessor if it is for a
+     * range just handed to it.
+     */
+    private void forwardCommand(Message message) {
+        if (!message.getCommand().equals("lookup") && !message.getCommand().equals("rlookup")) {
+            // Lookups sent after this write must not share an earlier lookup's reply
+            lookupFlights.detach(message.getKey());
+        }
+
+        InetAddress addr;
+        int port;
+        arcLock.readLock().lock();
+        try {
+            if (isHandedOff(message.getKey())) {
+                addr = predecessorAddr;
+                port = predecessorPort;
+            } else {
+                addr = successorAddr;
+                port = successorPort;
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        messageAny(message, addr, port);
+    }
+
+    /*
+     * Sends message to specified host, along with the other messages queued for it.
+     */
+    private void messageAny(Message message, InetAddress addr, int port) {
+        links.send(message, new InetSocketAddress(addr, port));
+    }
+
+    /*
+     * Called with a message that could not be sent. Requests that entered the system
+     * through this name server are sent again after a backoff, doubling with each failure.
+     */
+    private void messageFailed(Message message) {
+        if (message.getServerID() != -1) {
+            System.err.println("[ERROR] Problem occurred when replying to request's entry server.");
+            return;
+        }
+
+        System.err.println("[ERROR] Problem occurred when forwarding request to name server.");
+        if (isOwnRequest(message) && !message.getCommand().equals("watch_event")
+                && pendingRequests.containsKey(message.getRequestID())) {
+            int failures = failedSends.merge(message.getRequestID(), 1, Integer::sum);
+            resendRequest(message, RETRY_BACKOFF_MS << Math.min(failures - 1, 6));
+        }
+    }
+
+    private void forwardCommand(String command, int newNameServerID, InetAddress newNameServerAddr,
+                                int newNameServerPort, HopTrace trace) {
+        Socket successorSocket = null;
+        ObjectOutputStream outputStream = null;
+
+        InetAddress addr;
+        int port;
+        arcLock.readLock().lock();
+        try {
+            addr = successorAddr;
+            port = successorPort;
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        try {
+            successorSocket = new Socket(addr, port);
+            outputStream = new ObjectOutputStream(successorSocket.getOutputStream());
 
             outputStream.writeUTF(command);
             outputStream.writeInt(newNameServerID);
             outputStream.writeObject(newNameServerAddr);
             outputStream.writeInt(newNameServerPort);
-            outputStream.writeObject(visitedServers);
+            HopTrace.write(trace, outputStream);
+        } catch (IOException e) {
+            System.err.println("[ERROR] Problem occurred when forwarding request to successor name server.");
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (successorSocket != null) successorSocket.close(); } catch (IOException e) { }
+        }
+    }
+
+    /*
+     * Appends this name server's ID to the end of the visited servers list, if the
+     * request is being traced.
+     */
+    private void appendVisitedID(HopTrace trace) {
+        if (trace != null) {
+            trace.append(nameServerID);
+        }
+    }
+
+    private String lookupKey(final Message request) {
+        final int key = request.getKey();
+
+        // Append ID to trace
+        appendVisitedID(request.getTrace());
+        String message = buildLogMessage("lookup", key, request.getTrace());
+
+        boolean owned = false;
+        byte[] record = null;
+        arcLock.readLock().lock();
+        try {
+            // Name servers that have exited pass everything on to their old successor
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                owned = true;
+                requestCounts.incrementAndGet(key);
+                record = objects.get(key);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (record != null) {
+            // Key found, reply to entry server
+            replyToRequest(request, "lookup_found", VersionedValue.value(record), VersionedValue.version(record));
+            message += "Key found, replying to entry server.";
+        } else if (owned) {
+            // Key would be stored on this name server, no other server has it
+            replyToRequest(request, "lookup", null);
+            message += "Key not found, replying to entry server.";
+        } else if (request.getTrace() == null && lookupFlights.attach(key, reply -> relayReply(request, reply))) {
+            message += "Lookup for this key already in flight, replying to entry server once it completes.";
+        } else {
+            // Forward message to successor
+            forwardCommand(request);
+            message += "Key is not within this name server's range, forwarding message to successor.";
+        }
+
+        return message;
+    }
+
+    private String insertValue(final Message request) {
+        final int key = request.getKey();
+        final byte[] value = request.getValue();
+
+        // Append ID to trace
+        appendVisitedID(request.getTrace());
+        String message = buildLogMessage("insert", key, valueText(value), request.getTrace());
+
+        boolean inserted = false;
+        long version = 0;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                // Key should be inserted on this name server
+                version = storeValue(key, value, request.getTtl());
+                inserted = true;
+                requestCounts.incrementAndGet(key);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (inserted) {
+            replyToRequest(request, "insert_found", null, version);
+            publishChange(key, value);
+            message += "Key is within this name server's range, inserting value.";
+        } else {
+            // Forward message to successor
+            forwardCommand(request);
+            message += "Key is not within this name server's range, forwarding message to successor.";
+        }
+
+        return message;
+    }
+
+    private String deleteKey(final Message request) {
+        final int key = request.getKey();
+
+        // Append ID to trace
+        appendVisitedID(request.getTrace());
+        String message = buildLogMessage("delete", key, request.getTrace());
+
+        boolean owned = false;
+        boolean deleted = false;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                // Delete key off of this name server
+                owned = true;
+                requestCounts.incrementAndGet(key);
+                deleted = objects.remove(key);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (deleted) {
+            replyToRequest(request, "delete_found", null);
+            publishChange(key, null);
+            message += "Key is within this name server's range, deleting key.";
+        } else if (owned) {
+            // Key would be stored on this name server, no other server has it
+            replyToRequest(request, "delete", null);
+            message += "Key is within this name server's range, key not found.";
+        } else {
+            // Forward message to successor
+            forwardCommand(request);
+            message += "Key is not within this name server's range, forwarding message to successor.";
+        }
+
+        return message;
+    }
+
+    /*
+     * Stores or deletes (if the request has no value) a key only if its value is still at
+     * the version the request expects. The check and the write happen together on the
+     * key's owner, so the client's read-modify-write needs no lock.
+     */
+    private String compareAndSet(final Message request) {
+        final int key = request.getKey();
+
+        // Append ID to trace
+        appendVisitedID(request.getTrace());
+        String message = buildLogMessage("cas", key, "version " + request.getVersion(), request.getTrace());
+
+        Message reply = null;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                reply = executeRequest(request);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (reply != null) {
+            messageAny(reply, request.getReplyAddr(), request.getReplyPort());
+            notifyChange(request, reply);
+            message += reply.getCommand().equals("cas_found") ? "Version matched, value updated." :
+                    "Version is " + reply.getVersion() + ", value left as is.";
+        } else {
+            // Forward message to successor
+            forwardCommand(request);
+            message += "Key is not within this name server's range, forwarding message to successor.";
+        }
+
+        return message;
+    }
+
+    /*
+     * Renews the lease of a key for the request's ttl, keeping its value and version.
+     */
+    private String renewLease(final Message request) {
+        final int key = request.getKey();
+
+        // Append ID to trace
+        appendVisitedID(request.getTrace());
+        String message = buildLogMessage("renew", key, request.getTtl() / 1000 + "s", request.getTrace());
+
+        Message reply = null;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(key, rangeStart, rangeEnd)) {
+                reply = executeRequest(request);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (reply != null) {
+            messageAny(reply, request.getReplyAddr(), request.getReplyPort());
+            message += reply.getCommand().equals("renew_found") ? "Lease renewed." : "Key not found.";
+        } else {
+            // Forward message to successor
+            forwardCommand(request);
+            message += "Key is not within this name server's range, forwarding message to successor.";
+        }
+
+        return message;
+    }
+
+    /*
+     * Looks up the keys holding the request's value in this name server's part of the
+     * reverse index, if the value's slot (the request's key) is in its range.
+     */
+    private String lookupValue(final Message request) {
+        final int slot = request.getKey();
+
+        // Append ID to trace
+        appendVisitedID(request.getTrace());
+        String message = buildLogMessage("rlookup", slot, valueText(request.getValue()), request.getTrace());
+
+        Message reply = null;
+        arcLock.readLock().lock();
+        try {
+            if (connected && betweenRange(slot, rangeStart, rangeEnd)) {
+                reply = executeRequest(request);
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        if (reply != null) {
+            messageAny(reply, request.getReplyAddr(), request.getReplyPort());
+            message += reply.getCommand().equals("rlookup_found") ? "Keys found." : "No keys found.";
+        } else {
+            // Forward message to successor
+            forwardCommand(request);
+            message += "Slot is not within this name server's range, forwarding message to successor.";
+        }
+
+        return message;
+    }
+
+    private String buildEntrySuccessMessage(HopTrace trace) {
+        String response = "Successful entry.\n" +
+                "Key Range: " + rangeStart + "-" + rangeEnd + "\n" +
+                "Predecessor: " + predecessor + "\n" +
+                "Successor: " + successor;
+        if (trace != null) {
+            response += "\nVisited Servers: " + trace;
+        }
+        return response;
+    }
+
+    private String buildExitSuccessMessage() {
+        return "Successful exit.\n" +
+                "Key Range: " + rangeStart + "-" + rangeEnd + "\n" +
+                "Successor: " + successor;
+    }
+
+    /*
+     * Handles a neighbour leaving the system. An exiting predecessor's range is only
+     * taken over if no other change to this arc is under way; the exiting name server
+     * retries otherwise.
+     */
+    private void handleExit(ObjectInputStream inputStream, Socket sock) throws IOException, ClassNotFoundException {
+        int exitingID = inputStream.readInt();
+        boolean successorExited = inputStream.readBoolean();
+        int newID = inputStream.readInt();
+        InetAddress newAddr = (InetAddress) inputStream.readObject();
+        int newPort = inputStream.readInt();
+
+        if (successorExited) {
+            arcLock.writeLock().lock();
+            try {
+                // Ignore stale notices, a new name server may have entered in between
+                if (successor == exitingID) {
+                    successor = newID;
+                    successorAddr = newAddr;
+                    successorPort = newPort;
+                }
+            } finally {
+                arcLock.writeLock().unlock();
+            }
+            return;
+        }
+
+        // Predecessor exiting, reply on the same connection whether its range was taken over
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        boolean accepted = false;
+
+        try {
+            if (arcLock.writeLock().tryLock(ARC_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                try {
+                    if (connected && predecessor == exitingID) {
+                        objects.readEntries(inputStream, indexer());
+
+                        predecessor = newID;
+                        predecessorAddr = newAddr;
+                        predecessorPort = newPort;
+                        if (predecessor == nameServerID) {
+                            // Last other server exited, this name server now holds every key
+                            successor = nameServerID;
+                            successorAddr = nameServerAddr;
+                            successorPort = nameServerPort;
+                        }
+
+                        rangeStart = predecessor + 1;
+                        logRange();
+                        accepted = true;
+                    }
+                } finally {
+                    arcLock.writeLock().unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        outputStream.writeBoolean(accepted);
+        outputStream.flush();
+
+        // Streams and socket are closed by calling function
+    }
+
+    /*
+     * Checks this name server's arc against its predecessor's, every
+     * ANTI_ENTROPY_INTERVAL_MS. Successors are followed from the recorded predecessor
+     * until reaching the server whose successor is this name server; if that is not the
+     * recorded predecessor, an entry was missed here (e.g. the new server's confirmation
+     * was lost) and it becomes the predecessor. Keys still stored here for the
+     * predecessor's range are then compared by Merkle tree, only the ones it does not
+     * hold the same are sent over, and the copies here are dropped. Finally the load on
+     * both sides of the boundary is evened out, see rebalance().
+     */
+    private void syncWithPredecessor() {
+        // Requests from the last few rounds count most
+        for (int key = 0; key < MAX_OBJECT_AMOUNT; key++) {
+            requestCounts.updateAndGet(key, count -> count / 2);
+        }
+
+        int recordedID;
+        InetAddress addr;
+        int port;
+        arcLock.readLock().lock();
+        try {
+            // No range checks while shutting down, the arc only changes by the exit
+            if (!connected || isShutdown || predecessor == nameServerID) {
+                return;
+            }
+            recordedID = predecessor;
+            addr = predecessorAddr;
+            port = predecessorPort;
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        boolean synced = false;
+        int neighbourID = -1;
+        long neighbourLoad = -1;
+
+        for (int hop = 0; hop < MAX_SYNC_HOPS && !synced; hop++) {
+            Socket socket = null;
+            ObjectOutputStream outputStream = null;
+            ObjectInputStream inputStream = null;
+
+            try {
+                socket = new Socket(addr, port);
+                outputStream = new ObjectOutputStream(socket.getOutputStream());
+                outputStream.writeUTF("sync");
+                outputStream.flush();
+
+                inputStream = new ObjectInputStream(socket.getInputStream());
+                boolean neighbourConnected = inputStream.readBoolean();
+                int neighbourSuccessor = inputStream.readInt();
+                InetAddress neighbourSuccessorAddr = (InetAddress) inputStream.readObject();
+                int neighbourSuccessorPort = inputStream.readInt();
+                int neighbourRangeStart = inputStream.readInt(); // Exclusive
+                int neighbourRangeEnd = inputStream.readInt(); // Neighbour's own ID
+                long load = inputStream.readLong();
+                boolean pointsHere = neighbourSuccessorPort == nameServerPort
+                        && nameServerAddr.equals(neighbourSuccessorAddr);
+
+                if (neighbourConnected && neighbourSuccessor == nameServerID
+                        && (neighbourRangeEnd == recordedID
+                        || adoptPredecessor(recordedID, neighbourRangeEnd, addr, port))) {
+                    boolean pushing = merkleTree.hasKeys(neighbourRangeStart, neighbourRangeEnd);
+                    outputStream.writeBoolean(pushing);
+                    outputStream.flush();
+
+                    if (pushing) {
+                        pushStrays(neighbourRangeEnd, neighbourRangeStart, neighbourRangeEnd, outputStream, inputStream);
+                    }
+
+                    synced = true;
+                    neighbourID = neighbourRangeEnd;
+                    neighbourLoad = load;
+                    continue;
+                }
+
+                outputStream.writeBoolean(false);
+                outputStream.flush();
+
+                if (!neighbourConnected || neighbourSuccessor == nameServerID) {
+                    // Neighbour is exiting or the arc changed meanwhile, checked again next time
+                    return;
+                } else if (pointsHere) {
+                    // Predecessor missed this name server moving along the ring
+                    if (hop == 0) messageNewPredecessor();
+                    return;
+                } else if (!strictlyBetween(neighbourSuccessor, neighbourRangeEnd, nameServerID)) {
+                    // This name server comes before the predecessor's successor, so the
+                    // predecessor never heard of this name server's entry
+                    if (hop == 0) messageNewPredecessor();
+                    return;
+                }
+
+                addr = neighbourSuccessorAddr;
+                port = neighbourSuccessorPort;
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("[ERROR] Problem occurred when checking range with predecessor name server.");
+                return;
+            } finally {
+                try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+                try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
+                try { if (socket != null) socket.close(); } catch (IOException e) { }
+            }
+        }
+
+        if (synced) {
+            rebalance(neighbourID, addr, port, neighbourLoad);
+        }
+    }
+
+    /*
+     * Makes a name server found between the recorded predecessor and this one the
+     * predecessor. Returns false if the arc changed since the check started.
+     */
+    private boolean adoptPredecessor(int recordedID, int newID, InetAddress newAddr, int newPort) {
+        arcLock.writeLock().lock();
+        try {
+            if (!connected || predecessor != recordedID || !strictlyBetween(newID, predecessor, nameServerID)) {
+                return false;
+            }
+
+            predecessor = newID;
+            predecessorAddr = newAddr;
+            predecessorPort = newPort;
+            rangeStart = newID + 1;
+            logRange();
+        } finally {
+            arcLock.writeLock().unlock();
+        }
+
+        controlWorkers.execute(this::rerouteWatches);
+        controlWorkers.execute(this::rerouteIndex);
+        nameServerUI.printMessage("Predecessor was out of date, Name Server " + newID + " is now predecessor.\n" +
+                "Key Range: " + rangeStart + "-" + rangeEnd);
+        return true;
+    }
+
+    /*
+     * Sends the predecessor the keys stored here for its range that its Merkle tree does
+     * not agree on, then drops every copy kept here once it confirms. Keys the
+     * predecessor already stores are left as they are.
+     */
+    private void pushStrays(int neighbourID, int neighbourRangeStart, int neighbourRangeEnd,
+                            ObjectOutputStream outputStream, ObjectInputStream inputStream) throws IOException {
+        List<Integer> divergent = merkleTree.divergentKeys(neighbourRangeStart, neighbourRangeEnd,
+                outputStream, inputStream);
+
+        outputStream.writeInt(divergent.size());
+        for (int key : divergent) {
+            byte[] value = objects.get(key);
+            outputStream.writeInt(key);
+            outputStream.writeInt(value != null ? value.length : -1);
+            if (value != null) outputStream.write(value);
+        }
+        outputStream.flush();
+        int restored = inputStream.readInt();
+
+        int dropped = 0;
+        arcLock.readLock().lock();
+        try {
+            for (int key : merkleTree.keys(neighbourRangeStart, neighbourRangeEnd)) {
+                if (!betweenRange(key, rangeStart, rangeEnd) && objects.remove(key)) dropped++;
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        nameServerUI.printMessage("Synced Name Server " + neighbourID + "'s range: " + dropped + " stray keys dropped, " +
+                divergent.size() + " sent, " + restored + " restored.");
+    }
+
+    /*
+     * Answers a successor's syncWithPredecessor() with this name server's arc, then
+     * stores any keys in range it sends over that are not stored here yet.
+     */
+    private String handleSync(ObjectInputStream inputStream, Socket sock) throws IOException {
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+
+        arcLock.readLock().lock();
+        try {
+            outputStream.writeBoolean(connected);
+            outputStream.writeInt(successor);
+            outputStream.writeObject(successorAddr);
+            outputStream.writeInt(successorPort);
+            outputStream.writeInt(predecessor);
+            outputStream.writeInt(rangeEnd);
+            outputStream.writeLong(rangeLoad(predecessor, rangeEnd));
+        } finally {
+            arcLock.readLock().unlock();
+        }
+        outputStream.flush();
+
+        if (!inputStream.readBoolean()) {
+            return null;
+        }
+
+        merkleTree.answerDivergence(outputStream, inputStream);
+
+        int restored = 0;
+        for (int i = 0, n = inputStream.readInt(); i < n; i++) {
+            int key = inputStream.readInt();
+            int length = inputStream.readInt();
+            if (length < 0) continue;
+
+            byte[] value = new byte[length];
+            inputStream.readFully(value);
+
+            arcLock.readLock().lock();
+            try {
+                // A value stored here is never older than the successor's copy
+                if (connected && rangeCheck(key) && betweenRange(key, rangeStart, rangeEnd)
+                        && objects.putIfAbsent(key, value)) {
+                    indexValue(key, VersionedValue.value(value));
+                    restored++;
+                }
+            } finally {
+                arcLock.readLock().unlock();
+            }
+        }
+
+        outputStream.writeInt(restored);
+        outputStream.flush();
+
+        return restored > 0 ? "Restored " + restored + " keys from successor." : null;
+    }
+
+    /*
+     * Returns the keys, bytes and hottest keys in this name server's range, along with its
+     * range and neighbours.
+     */
+    private RingStats.NodeStats localStats() {
+        arcLock.readLock().lock();
+        try {
+            int keys = 0;
+            long bytes = 0;
+            for (int key = 0; key < MAX_OBJECT_AMOUNT; key++) {
+                int length = betweenRange(key, rangeStart, rangeEnd) ? objects.length(key) : -1;
+                if (length >= 0) {
+                    keys++;
+                    bytes += length;
+                }
+            }
+
+            return new RingStats.NodeStats(nameServerID, nameServerAddr, nameServerPort, rangeStart, rangeEnd, keys, bytes,
+                    HotKeys.top(requestCounts, key -> betweenRange(key, rangeStart, rangeEnd),
+                            RingStats.HOT_KEY_AMOUNT),
+                    new InetSocketAddress(successorAddr, successorPort),
+                    new InetSocketAddress(predecessorAddr, predecessorPort));
+        } finally {
+            arcLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Answers a ring-wide stats query with this name server's stats.
+     */
+    private void handleStats(Socket sock) throws IOException {
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        outputStream.writeBoolean(connected);
+        if (connected) {
+            localStats().write(outputStream);
+        }
+        outputStream.flush();
+    }
+
+    /*
+     * Answers a BulkLoader with this name server's range and successor, then stores the
+     * batches of keys it streams over. Keys no longer in range by the time their batch
+     * arrives are sent back, the loader looks for their new owner on its next walk.
+     */
+    private String handleBulkLoad(ObjectInputStream inputStream, Socket sock) throws IOException {
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+
+        arcLock.readLock().lock();
+        try {
+            outputStream.writeBoolean(connected);
+            outputStream.writeInt(rangeStart);
+            outputStream.writeInt(rangeEnd);
+            outputStream.writeObject(successorAddr);
+            outputStream.writeInt(successorPort);
+        } finally {
+            arcLock.readLock().unlock();
+        }
+        outputStream.flush();
+
+        int stored = 0;
+        List<Integer> refused = new ArrayList<>();
+        for (int n = inputStream.readInt(); n > 0; n = inputStream.readInt()) {
+            int[] keys = new int[n];
+            byte[][] values = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                keys[i] = inputStream.readInt();
+                values[i] = new byte[inputStream.readInt()];
+                inputStream.readFully(values[i]);
+            }
+
+            // The whole batch is stored under one hold of the arc lock
+            boolean[] owned = new boolean[n];
+            arcLock.readLock().lock();
+            try {
+                for (int i = 0; i < n; i++) {
+                    owned[i] = connected && rangeCheck(keys[i]) && betweenRange(keys[i], rangeStart, rangeEnd);
+                    if (owned[i]) {
+                        storeValue(keys[i], values[i], 0);
+                        stored++;
+                    } else {
+                        refused.add(keys[i]);
+                    }
+                }
+            } finally {
+                arcLock.readLock().unlock();
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (owned[i]) publishChange(keys[i], values[i]);
+            }
+        }
+
+        outputStream.writeInt(refused.size());
+        for (int key : refused) {
+            outputStream.writeInt(key);
+        }
+        outputStream.flush();
+
+        return stored > 0 ? "Bulk loaded " + stored + " keys." : null;
+    }
+
+    /*
+     * Returns true if id comes after start and before end going around the ring.
+     */
+    private static boolean strictlyBetween(int id, int start, int end) {
+        int distance = Math.floorMod(id - start, MAX_OBJECT_AMOUNT);
+        return distance > 0 && distance < Math.floorMod(end - start, MAX_OBJECT_AMOUNT);
+    }
+
+    /*
+     * Returns true if key is in the range last handed to the predecessor and requests for
+     * it may still be on their way here. Called with the arc lock held.
+     */
+    private boolean isHandedOff(int key) {
+        return connected && handedOffEnd == predecessor && System.currentTimeMillis() < handedOffUntil
+                && strictlyBetween(key, handedOffStart, handedOffEnd + 1);
+    }
+
+    /*
+     * Returns true if every key in [firstKey, lastKey] is in this name server's range.
+     * Called with the arc lock held.
+     */
+    private boolean ownsAll(int firstKey, int lastKey) {
+        if (rangeStart <= rangeEnd) {
+            return firstKey >= rangeStart && lastKey <= rangeEnd;
+        }
+        // Range wraps around past the highest key, the keys must sit on one side of it
+        return firstKey >= rangeStart || lastKey <= rangeEnd;
+    }
+
+    /*
+     * Remembers the (exclusive, inclusive) range just handed to the new predecessor for
+     * one range check interval. Called with the arc write lock held.
+     */
+    private void recordHandOff(int rangeStart, int rangeEnd) {
+        handedOffStart = rangeStart;
+        handedOffEnd = rangeEnd;
+        handedOffUntil = System.currentTimeMillis() + ANTI_ENTROPY_INTERVAL_MS;
+    }
+
+    /*
+     * Load of the (exclusive, inclusive) range: one for every stored key plus the recent
+     * requests for each key.
+     */
+    private long rangeLoad(int rangeStart, int rangeEnd) {
+        long load = merkleTree.keys(rangeStart, rangeEnd).size();
+        for (int key = (rangeStart + 1) % MAX_OBJECT_AMOUNT; ; key = (key + 1) % MAX_OBJECT_AMOUNT) {
+            load += requestCounts.get(key);
+            if (key == rangeEnd) break;
+        }
+        return load;
+    }
+
+    /*
+     * Walks the keys from first to last (inclusive) one step at a time, adding up their
+     * load until it reaches targetLoad, or until taking the next stored key would go over
+     * REBALANCE_MAX_KEYS/REBALANCE_MAX_BYTES. Returns the last key walked, -1 if the keys
+     * walked carry no load.
+     */
+    private int walkLoad(int first, int last, int step, long targetLoad) {
+        long load = 0;
+        int keys = 0;
+        long bytes = 0;
+        int lastKey = -1;
+
+        for (int key = first; ; key = Math.floorMod(key + step, MAX_OBJECT_AMOUNT)) {
+            byte[] value = objects.get(key);
+            if (value != null) {
+                if (keys == REBALANCE_MAX_KEYS || (keys > 0 && bytes + value.length > REBALANCE_MAX_BYTES)) {
+                    break;
+                }
+                keys++;
+                bytes += value.length;
+                load++;
+            }
+            load += requestCounts.get(key);
+            lastKey = key;
+
+            if (load >= targetLoad || key == last) break;
+        }
+
+        return load > 0 ? lastKey : -1;
+    }
+
+    /*
+     * Evens out the load with the predecessor after a range check by moving the boundary
+     * between them. If this name server is busier, the predecessor moves up and takes the
+     * lowest keys of this range; if the predecessor is busier, it moves down and hands
+     * its highest keys over. Either way the keys go through the same transfer as an entry
+     * or exit, with the arc write lock held on both sides until the move is done.
+     */
+    private void rebalance(int neighbourID, InetAddress addr, int port, long neighbourLoad) {
+        if (neighbourLoad < 0) {
+            // Bootstrap server never moves
+            return;
+        }
+
+        try {
+            if (!arcLock.writeLock().tryLock(ARC_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Socket socket = null;
+        ObjectOutputStream outputStream = null;
+        ObjectInputStream inputStream = null;
+        int oldBoundary = predecessor;
+        int newBoundary = -1;
+        boolean take;
+        int movedKeys;
+
+        try {
+            if (!connected || predecessor != neighbourID) {
+                return;
+            }
+
+            long load = rangeLoad(predecessor, rangeEnd);
+            long tolerance = (load + neighbourLoad) * REBALANCE_TOLERANCE_PERCENT / 100;
+            if (Math.abs(load - neighbourLoad) <= Math.max(tolerance, REBALANCE_MIN_LOAD)) {
+                return;
+            }
+
+            take = load > neighbourLoad;
+            if (take) {
+                // Predecessor moves up to newBoundary, this name server keeps its own ID
+                if (Math.floorMod(nameServerID - predecessor, MAX_OBJECT_AMOUNT) < 2) return;
+                newBoundary = walkLoad((predecessor + 1) % MAX_OBJECT_AMOUNT,
+                        Math.floorMod(nameServerID - 1, MAX_OBJECT_AMOUNT), 1, (load - neighbourLoad) / 2);
+                if (newBoundary < 0) return;
+            }
+
+            socket = new Socket(addr, port);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.writeUTF("rebalance");
+            outputStream.writeInt(nameServerID);
+            outputStream.writeInt(neighbourID);
+            outputStream.writeBoolean(take);
+            if (take) {
+                outputStream.writeInt(newBoundary);
+                objects.writeRange(outputStream, predecessor, newBoundary);
+            } else {
+                outputStream.writeLong((neighbourLoad - load) / 2);
+            }
+            outputStream.flush();
+
+            inputStream = new ObjectInputStream(socket.getInputStream());
+            if (!inputStream.readBoolean()) {
+                return;
+            }
+
+            int before = objects.size();
+            if (take) {
+                objects.removeRange(predecessor, newBoundary);
+                recordHandOff(predecessor, newBoundary);
+                controlWorkers.execute(this::rerouteWatches);
+                controlWorkers.execute(this::rerouteIndex);
+            } else {
+                newBoundary = inputStream.readInt();
+                objects.readEntries(inputStream, indexer());
+
+                // Predecessor drops its copies once this name server has the keys
+                outputStream.writeBoolean(true);
+                outputStream.flush();
+            }
+            movedKeys = Math.abs(objects.size() - before);
+
+            predecessor = newBoundary;
+            rangeStart = newBoundary + 1;
+            logRange();
         } catch (IOException e) {
-            System.err.println("[ERROR] Problem occurred when forwarding request to successor name server.");
+            System.err.println("[ERROR] Problem occurred when rebalancing with predecessor name server.");
+            return;
         } finally {
+            arcLock.writeLock().unlock();
             try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
-            try { if (inputStream != null) outputStream.close(); } catch (IOException e) { }
-            try { if (successorSocket != null) successorSocket.close(); } catch (IOException e) { }
+            try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
         }
+
+        nameServerUI.printMessage("Rebalanced with predecessor, " + movedKeys + " keys " +
+                (take ? "handed over" : "taken over") + ". Predecessor moved from " + oldBoundary + " to " +
+                newBoundary + ".\n" +
+                "Key Range: " + rangeStart + "-" + rangeEnd);
     }
 
     /*
-     * Appends this name server's ID to the end of the visited servers list.
+     * Answers a successor's rebalance(). This name server moves to the new boundary: up,
+     * storing the keys the successor sends, or down, sending the keys above the new
+     * boundary and dropping them once the successor confirms.
      */
-    private int[] appendVisitedID(int[] visitedServers) {
-        int length = visitedServers.length;
-        visitedServers = Arrays.copyOf(visitedServers, length + 1);
-        visitedServers[length] = nameServerID;
+    private String handleRebalance(ObjectInputStream inputStream, Socket sock) throws IOException {
+        int successorID = inputStream.readInt();
+        int expectedID = inputStream.readInt();
+        boolean take = inputStream.readBoolean();
 
-        return visitedServers;
-    }
-
-    private String lookupKey(final int key, int[] visitedServers) {
-        // Append ID to visitedServers
-        visitedServers = appendVisitedID(visitedServers);
-        String message = buildLogMessage("lookup", key, visitedServers);
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        int oldID = nameServerID;
+        int newID = -1;
+        int movedKeys;
 
-        if (betweenRange(key, rangeStart, rangeEnd) && objects.get(key) != null) {
-            // Key found, message bootstrap server
-            String value = objects.get(key);
-            messageBootstrap("lookup_found", key, value, visitedServers);
-            message += "Key found, messaging bootstrap server.";
-        } else {
-            // Forward message to successor
-            forwardCommand("lookup", key, visitedServers);
-            message += "Key not found, forwarding message to successor.";
+        try {
+            if (!arcLock.writeLock().tryLock(ARC_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                outputStream.writeBoolean(false);
+                outputStream.flush();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
 
-        return message;
-    }
+        try {
+            boolean valid = connected && successor == successorID && nameServerID == expectedID;
+            int before = objects.size();
 
-    private String insertValue(final int key, final String value, int[] visitedServers) {
-        // Append ID to visitedServers
-        visitedServers = appendVisitedID(visitedServers);
-        String message = buildLogMessage("insert", key, value, visitedServers);
+            if (take) {
+                int newBoundary = inputStream.readInt();
+                if (!valid || !strictlyBetween(newBoundary, nameServerID, successor)) {
+                    outputStream.writeBoolean(false);
+                    outputStream.flush();
+                    return null;
+                }
 
-        if (betweenRange(key, rangeStart, rangeEnd)) {
-            // Key should be inserted on this name server
-            objects.put(key, value);
-            messageBootstrap("insert_found", key, value, visitedServers);
-            message += "Key is within this name server's range, inserting value.";
-        } else {
-            // Forward message to successor
-            forwardCommand("insert", key, value, visitedServers);
-            message += "Key is not within this name server's range, forwarding message to successor.";
-        }
+                objects.readEntries(inputStream, indexer());
+                newID = newBoundary;
 
-        return message;
-    }
+                outputStream.writeBoolean(true);
+                outputStream.flush();
+            } else {
+                long targetLoad = inputStream.readLong();
+                if (valid && Math.floorMod(nameServerID - predecessor, MAX_OBJECT_AMOUNT) >= 2) {
+                    // Keeps at least the key after the predecessor
+                    int lowest = walkLoad(nameServerID, (predecessor + 2) % MAX_OBJECT_AMOUNT, -1, targetLoad);
+                    if (lowest >= 0) newID = Math.floorMod(lowest - 1, MAX_OBJECT_AMOUNT);
+                }
+                if (newID < 0) {
+                    outputStream.writeBoolean(false);
+                    outputStream.flush();
+                    return null;
+                }
+
+                outputStream.writeBoolean(true);
+                outputStream.writeInt(newID);
+                objects.writeRange(outputStream, newID, nameServerID);
+                outputStream.flush();
 
-    private String deleteKey(final int key, int[] visitedServers) {
-        // Append ID to visitedServers
-        visitedServers = appendVisitedID(visitedServers);
-        String message = buildLogMessage("insert", key, visitedServers);
+                if (!inputStream.readBoolean()) {
+                    return null;
+                }
+                objects.removeRange(newID, nameServerID);
+                controlWorkers.execute(this::rerouteWatches);
+                controlWorkers.execute(this::rerouteIndex);
+            }
+            movedKeys = Math.abs(objects.size() - before);
 
-        if (betweenRange(key, rangeStart, rangeEnd) && objects.get(key) != null) {
-            // Delete key off of this name server
-            objects.remove(key);
-            messageBootstrap("delete_found", key, visitedServers);
-            message += "Key is within this name server's range, deleting key.";
-        } else {
-            // Forward message to successor
-            forwardCommand("delete", key, visitedServers);
-            message += "Key is not within this name server's range, forwarding message to successor.";
+            nameServerID = newID;
+            rangeEnd = newID;
+            logRange();
+        } finally {
+            arcLock.writeLock().unlock();
         }
 
-        return message;
+        // Predecessor still knows this name server by its old ID
+        messageNewPredecessor();
+
+        return "Rebalanced with successor, " + movedKeys + " keys " + (take ? "taken over" : "handed over") +
+                ". Moved from " + oldID + " to " + newID + ".\n" +
+                "Key Range: " + rangeStart + "-" + rangeEnd;
     }
 
     /*
-     * Moves the (inclusive, exclusive) range of keys from this name server to the new name server.
+     * Reads this name server's place in the ring and its initial keys from its new
+     * successor, then confirms the entry on the same connection.
      */
-    private void moveStoredObjects(ObjectOutputStream outputStream, int rangeStart, int rangeEnd) throws IOException {
-        if (rangeStart < rangeEnd) {
-            NavigableMap<Integer, String> nameServerObjects = objects.subMap(rangeStart, false, rangeEnd, true);
-            outputStream.writeObject(nameServerObjects);
-            outputStream.flush();
-
-            // Removes this range of keys from the objects tree map after sent.
-            nameServerObjects.clear();
-        } // else {
-        // Okay, not gonna both implementing this because we can safely assume with
-        // the project description that bootstrap will ALWAYS be ID of 0. For some
-        // reason we still have to read the ID from the config file??? In the case
-        // were you'd actually want to implement this stuff, there are a bunch of
-        // lingering flaws in this project with not checking if a new index go out of
-        // bounds of the possible server IDs (Name server IDs allowed are between
-        // [0, 1024].
-        // }
-
-    }
-
-    private String buildEntrySuccessMessage(int[] visitedServers) {
-        return "Successful entry.\n" +
-                "Key Range: " + rangeStart + "-" + rangeEnd + "\n" +
-                "Predecessor: " + predecessor + "\n" +
-                "Successor: " + successor + "\n" +
-                "Visited Servers: " + visitedToString(visitedServers);
-    }
+    private String enterComplete(ObjectInputStream inputStream, Socket sock) throws IOException, ClassNotFoundException {
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        HopTrace trace;
 
-    private String buildExitSuccessMessage() {
-        return "Successful exit.\n" +
-                "Key Range: " + rangeStart + "-" + rangeEnd + "\n" +
-                "Successor: " + successor;
-    }
-
-    private void handleExit(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
-        if (inputStream.readBoolean()) {
-            // Successor exited
+        arcLock.writeLock().lock();
+        try {
+            // New successor
             successor = inputStream.readInt();
             successorAddr = (InetAddress) inputStream.readObject();
             successorPort = inputStream.readInt();
-        } else {
-            // Predecessor exited
+
+            // New predecessor
             predecessor = inputStream.readInt();
             predecessorAddr = (InetAddress) inputStream.readObject();
             predecessorPort = inputStream.readInt();
 
+            // New ranges
             rangeStart = predecessor + 1;
+            rangeEnd = nameServerID;
 
-            objects.putAll((NavigableMap<Integer, String>) inputStream.readObject());
-        }
-    }
-
-    private String enterComplete(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
-        // New successor
-        successor = inputStream.readInt();
-        successorAddr = (InetAddress) inputStream.readObject();
-        successorPort = inputStream.readInt();
-
-        // New predecessor
-        predecessor = inputStream.readInt();
-        predecessorAddr = (InetAddress) inputStream.readObject();
-        predecessorPort = inputStream.readInt();
-
-        // New ranges
-        rangeStart = predecessor + 1;
-        rangeEnd = nameServerID;
+            trace = HopTrace.read(inputStream);
 
-        int[] visitedServers = (int[]) inputStream.readObject();
+            // Initial key/value pairs, sent as a raw segment after the header
+            RangeSegment.load(objects, sock.getInputStream(), indexer());
+            logRange();
+        } finally {
+            arcLock.writeLock().unlock();
+        }
 
-        // Initial key/value pairs
-        objects.putAll((NavigableMap<Integer, String>) inputStream.readObject());
+        outputStream.writeBoolean(true);
+        outputStream.flush();
 
-        return buildEntrySuccessMessage(visitedServers);
+        return buildEntrySuccessMessage(trace);
     }
 
     /*
      * Notifies new name server that they have been entered. Sends new name server's new
-     * successor/predecessor info and transfers stored objects.
+     * successor/predecessor info and a copy of its stored objects, and returns true once
+     * the new name server confirms. Called with the arc write lock held.
      */
-    private void sendEnterComplete(int oldPredecessor, InetAddress oldPredecessorAddr, int oldPredecessorPort, int[] visitedServers) {
+    private boolean sendEnterComplete(int newID, InetAddress newAddr, int newPort, HopTrace trace) {
+        RangeSegment segment = null;
         Socket predecessorSocket = null;
         ObjectOutputStream outputStream = null;
         ObjectInputStream inputStream = null;
 
         try {
-            predecessorSocket = new Socket(predecessorAddr, predecessorPort);
+            // Range is written out before connecting, then sent from the file by the kernel
+            segment = RangeSegment.write(objects, predecessor, newID);
+
+            // Opened through a channel so the segment can be transferred to it
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(newAddr, newPort));
+            predecessorSocket = channel.socket();
             outputStream = new ObjectOutputStream(predecessorSocket.getOutputStream());
-            inputStream = new ObjectInputStream(predecessorSocket.getInputStream());
 
             outputStream.writeUTF("enter_complete");
 
@@ -462,116 +2542,335 @@ public class NameServer implements Runnable {
             outputStream.writeObject(nameServerAddr);
             outputStream.writeInt(nameServerPort);
 
-            outputStream.writeInt(oldPredecessor);
-            outputStream.writeObject(oldPredecessorAddr);
-            outputStream.writeInt(oldPredecessorPort);
+            outputStream.writeInt(predecessor);
+            outputStream.writeObject(predecessorAddr);
+            outputStream.writeInt(predecessorPort);
+
+            HopTrace.write(trace, outputStream);
+            outputStream.flush();
 
-            outputStream.writeObject(visitedServers);
+            // Initial key/value pairs, raw after the flushed header
+            segment.transferTo(channel);
 
-            moveStoredObjects(outputStream, oldPredecessor, predecessor);
+            inputStream = new ObjectInputStream(predecessorSocket.getInputStream());
+            return inputStream.readBoolean();
         } catch (IOException e) {
             System.err.println("[ERROR] Problem occurred when notifying new predecessor name server.");
-            e.printStackTrace();
+            return false;
         } finally {
             try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
-            try { if (inputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
             try { if (predecessorSocket != null) predecessorSocket.close(); } catch (IOException e) { }
+            if (segment != null) segment.delete();
         }
     }
 
-    private void nameServerEnter(ObjectInputStream inputStream, ObjectOutputStream outputStream) {
+    /*
+     * Handles a new name server asking to enter the system through this name server.
+     */
+    private void handleJoin(ObjectInputStream inputStream, Socket sock) {
         try {
+            // Replies on the same connection
+            ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+
             // Read new name server info
             int newID = inputStream.readInt();
-            InetAddress newAddr = (InetAddress) inputStream.readObject();
+            InetAddress newAddr = InetAddress.getByName(inputStream.readUTF());
             int newPort = inputStream.readInt();
-            int[] visitedServers = (int[]) inputStream.readObject();
 
-            // Add this name server's ID to the list
-            visitedServers = appendVisitedID(visitedServers);
+            if (!connected) {
+                // Not part of the system, new name server will try its next seed
+                return;
+            }
 
             // Check if ID is in use
-            if ((newID == nameServerID || newID == successor)) {
+            boolean inUse;
+            arcLock.readLock().lock();
+            try {
+                inUse = newID == nameServerID || newID == successor || newID == predecessor;
+            } finally {
+                arcLock.readLock().unlock();
+            }
+            if (inUse) {
                 // Name server should print error and panic
-                // TODO contact name server directly with "invalid_id"
+                outputStream.writeBoolean(true);
+                outputStream.flush();
                 return;
             }
+            outputStream.writeBoolean(false);
+            outputStream.flush();
+
+            routeEntry(newID, newAddr, newPort, new HopTrace(nameServerID));
+        } catch (IOException e) {
+            System.err.println("[ERROR] Connection problem occurred when adding new name server.");
+        }
+
+        // Streams and socket are closed by calling function
+    }
+
+    /*
+     * Handles a new name server's entry request forwarded by this name server's
+     * predecessor.
+     */
+    private void nameServerEnter(ObjectInputStream inputStream) {
+        try {
+            // Read new name server info
+            int newID = inputStream.readInt();
+            InetAddress newAddr = (InetAddress) inputStream.readObject();
+            int newPort = inputStream.readInt();
+            HopTrace trace = HopTrace.read(inputStream);
+
+            // Add this name server's ID to the list
+            appendVisitedID(trace);
+
+            routeEntry(newID, newAddr, newPort, trace);
+        } catch (IOException e) {
+            System.err.println("[ERROR] Connection problem occurred when adding new name server.");
+        } catch (ClassNotFoundException e) {
+            // Should not happen, exit program
+            System.err.println("[ERROR] Input stream failure.");
+            System.exit(1);
+        }
 
-            if (betweenRange(newID, predecessor, nameServerID)) {
-                // Update name server's predecessor
-                int oldPredecessor = predecessor;
-                InetAddress oldPredecessorAddr = predecessorAddr;
-                int oldPredecessorPort = predecessorPort;
+        // Streams and socket are closed by calling function
+    }
 
+    /*
+     * Enters a new name server if its ID falls in this name server's key range, making it
+     * this name server's predecessor. Otherwise passes the entry on to the successor.
+     *
+     * Holds the arc write lock while the keys are moved, so entries into the same arc are
+     * handled one at a time and no request lands in the moving range. The range is checked
+     * again under the lock, an earlier entry or exit may have changed it.
+     */
+    private void routeEntry(int newID, InetAddress newAddr, int newPort, HopTrace trace) {
+        arcLock.writeLock().lock();
+        try {
+            if (connected && betweenRange(newID, rangeStart, rangeEnd)) {
+                // Check if ID is in use
+                if (newID == nameServerID) {
+                    rejectEntry(newAddr, newPort);
+                    return;
+                }
+
+                // Key/Values must be transferred before the ranges are updated!
+                if (!sendEnterComplete(newID, newAddr, newPort, trace)) {
+                    return;
+                }
+                objects.removeRange(predecessor, newID);
+                recordHandOff(predecessor, newID);
+
+                // Update name server's predecessor and key ranges
                 predecessor = newID;
                 predecessorAddr = newAddr;
                 predecessorPort = newPort;
-
-                sendEnterComplete(oldPredecessor, oldPredecessorAddr, oldPredecessorPort, visitedServers);
-
-                // Update name server's key ranges
-                // THIS SHOULD BE DONE AFTER sendEnterComplete()!!!
-                // Key/Values must be transferred first!
                 rangeStart = newID + 1;
                 // rangeEnd always stays the same; rangeEnd == nameServerID
+                logRange();
 
-                outputStream.flush();
+                controlWorkers.execute(this::rerouteWatches);
+                controlWorkers.execute(this::rerouteIndex);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR] Connection problem occurred when adding new name server.");
+            return;
+        } finally {
+            arcLock.writeLock().unlock();
+        }
+
+        // Forwarding name server entry to successor
+
+        // Name server that becomes the new node's successor will directly contact
+        // the new node upon successful entry.
+        forwardCommand("enter_forward", newID, newAddr, newPort, trace);
+    }
+
+    /*
+     * Tells a new name server its ID is already in use.
+     */
+    private void rejectEntry(InetAddress newAddr, int newPort) throws IOException {
+        Socket socket = null;
+        ObjectOutputStream outputStream = null;
+
+        try {
+            socket = new Socket(newAddr, newPort);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.writeUTF("enter_rejected");
+            outputStream.flush();
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
+        }
+    }
+
+    /*
+     * Handles a lookup/insert/delete request, a reply to one or a change to a watched
+     * key. Runs on the data worker for the message's key.
+     */
+    private void handleMessage(Message message) {
+        String command = message.getCommand();
+        String log = null;
+
+        if (command.equals("lookup") || command.equals("insert") || command.equals("delete")
+                || command.equals("cas") || command.equals("renew") || command.equals("rlookup")) {
+            if (isOwnRequest(message)) {
+                // Not found reply from the key's owner, or a request that entered through
+                // this name server and came back around the ring. Copies of a request that
+                // was sent again are dropped once it is answered
+                if (pendingRequests.containsKey(message.getRequestID())) {
+                    Message reply = message.getServerID() == -1 ? returnedRequest(message) : message;
+                    if (reply != null) completeRequest(reply);
+                }
+            } else if (command.equals("lookup")) {
+                log = lookupKey(message);
+            } else if (command.equals("insert")) {
+                log = insertValue(message);
+            } else if (command.equals("cas")) {
+                log = compareAndSet(message);
+            } else if (command.equals("renew")) {
+                log = renewLease(message);
+            } else if (command.equals("rlookup")) {
+                log = lookupValue(message);
             } else {
-                // Forwarding name server entry to successor
+                log = deleteKey(message);
+            }
+        } else if (command.equals("watch_event")) {
+            // Change to a key watched by a client of this name server
+            Consumer<Message> listener = watchListeners.get(message.getRequestID());
+            if (listener != null) listener.accept(message);
+        } else if (!completeRequest(message)) {
+            // Reply to a request sent by this name server
+            log = "Reply received for unknown request " + message.getRequestID() + ".";
+        }
+
+        nameServerUI.printMessage(log);
+    }
+
+    /*
+     * Handles a message whose value is still on the connection. Inserts for keys outside
+     * this name server's range are relayed to the successor chunk by chunk; anything else
+     * has its value read and is handled like any other message.
+     */
+    private void handleStreamedMessage(Message message, ObjectInputStream inputStream) {
+        try {
+            boolean owned;
+            arcLock.readLock().lock();
+            try {
+                owned = connected && betweenRange(message.getKey(), rangeStart, rangeEnd);
+            } finally {
+                arcLock.readLock().unlock();
+            }
 
-                // Name server that becomes the new node's successor will directly contact
-                // the new node upon successful entry.
-                forwardCommand("entry", newID, newAddr, newPort, visitedServers);
+            if (owned || !message.getCommand().equals("insert") || isOwnRequest(message)) {
+                handleMessage(message.readPayload(inputStream));
+                return;
             }
 
+            appendVisitedID(message.getTrace());
+            relayCommand(message, inputStream);
+            nameServerUI.printMessage(buildLogMessage("insert", message.getKey(),
+                    "<" + message.getValueLength() + " bytes>", message.getTrace()) +
+                    "Key is not within this name server's range, relaying value to successor.");
         } catch (IOException e) {
-            System.err.println("[ERROR] Connection problem occurred when adding new name server.");
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            // Should not happen, exit program
-            System.err.println("[ERROR] Input stream failure.");
-            e.printStackTrace();
-            System.exit(1);
+            System.err.println("[ERROR] Problem occurred when reading streamed value.");
+        }
+    }
+
+    /*
+     * Passes a streamed message on like forwardCommand(), copying its value straight from
+     * the incoming connection.
+     */
+    private void relayCommand(Message message, ObjectInputStream inputStream) throws IOException {
+        if (!message.getCommand().equals("lookup") && !message.getCommand().equals("rlookup")) {
+            // Lookups sent after this write must not share an earlier lookup's reply
+            lookupFlights.detach(message.getKey());
         }
 
-        // Streams and socket are closed by calling function
+        InetAddress addr;
+        int port;
+        arcLock.readLock().lock();
+        try {
+            if (isHandedOff(message.getKey())) {
+                addr = predecessorAddr;
+                port = predecessorPort;
+            } else {
+                addr = successorAddr;
+                port = successorPort;
+            }
+        } finally {
+            arcLock.readLock().unlock();
+        }
+
+        Socket successorSocket = null;
+        ObjectOutputStream outputStream = null;
+
+        try {
+            successorSocket = new Socket(addr, port);
+            outputStream = new ObjectOutputStream(successorSocket.getOutputStream());
+
+            message.relay(inputStream, outputStream);
+            outputStream.flush();
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (successorSocket != null) successorSocket.close(); } catch (IOException e) { }
+        }
     }
 
-    private void handleCommand(String command, ObjectInputStream inputStream, ObjectOutputStream outputStream) {
+    private void handleCommand(String command, ObjectInputStream inputStream, Socket sock) {
         String message = null;
 
         try {
             if (command.equals("shutdown")) {
-                // Shuts down this name server and tell successor to shut down as well
-                // TODO
-            }
-
-            if (command.equals("lookup")) {
-                int key = inputStream.readInt();
-                int[] visitedServers = (int[]) inputStream.readObject();
-                message = lookupKey(key, visitedServers);
-            } else if (command.equals("insert")) {
-                int key = inputStream.readInt();
-                String value = inputStream.readUTF();
-                int[] visitedServers = (int[]) inputStream.readObject();
-                message = insertValue(key, value, visitedServers);
-            } else if (command.equals("delete")) {
-                int key = inputStream.readInt();
-                int[] visitedServers = (int[]) inputStream.readObject();
-                message = deleteKey(key, visitedServers);
+                // Shut down remotely, e.g. one server at a time for a rolling restart
+                controlWorkers.execute(this::shutdown);
             } else if (command.equals("enter")) {
-                nameServerEnter(inputStream, outputStream);
+                handleJoin(inputStream, sock);
                 message = null;
+            } else if (command.equals("enter_forward")) {
+                nameServerEnter(inputStream);
+                message = null;
+            } else if (command.equals("enter_rejected")) {
+                System.err.println("[ERROR] ID is already in use!");
+                System.exit(1);
             } else if (command.equals("enter_complete")) {
-                message = enterComplete(inputStream);
+                message = enterComplete(inputStream, sock);
                 messageNewPredecessor();
             } else if (command.equals("new_successor")) {
-                this.successor = inputStream.readInt();
-                this.successorAddr = (InetAddress) inputStream.readObject();
-                this.successorPort = inputStream.readInt();
+                int newSuccessor = inputStream.readInt();
+                InetAddress newSuccessorAddr = (InetAddress) inputStream.readObject();
+                int newSuccessorPort = inputStream.readInt();
+
+                arcLock.writeLock().lock();
+                try {
+                    this.successor = newSuccessor;
+                    this.successorAddr = newSuccessorAddr;
+                    this.successorPort = newSuccessorPort;
+                } finally {
+                    arcLock.writeLock().unlock();
+                }
             } else if (command.equals("exit")) {
-                handleExit(inputStream);
+                handleExit(inputStream, sock);
                 message = null;
+            } else if (command.equals("sync")) {
+                message = handleSync(inputStream, sock);
+            } else if (command.equals("rebalance")) {
+                message = handleRebalance(inputStream, sock);
+            } else if (command.equals("watch")) {
+                int hops = inputStream.readInt();
+                routeWatch(Watches.Watch.read(inputStream), hops);
+            } else if (command.equals("index")) {
+                int hops = inputStream.readInt();
+                boolean add = inputStream.readBoolean();
+                List<ReverseIndex.Entry> entries = new ArrayList<>();
+                for (int i = 0, n = inputStream.readInt(); i < n; i++) {
+                    entries.add(ReverseIndex.Entry.read(inputStream));
+                }
+                routeIndex(entries, add, hops);
+            } else if (command.equals("bulk_load")) {
+                message = handleBulkLoad(inputStream, sock);
+            } else if (command.equals("stats")) {
+                handleStats(sock);
             } else {
                 message = "Unknown command received from predecessor(Name Server " + predecessor + "): " + command + ".";
             }
@@ -587,50 +2886,113 @@ public class NameServer implements Runnable {
         nameServerUI.printMessage(message);
     }
 
+    /*
+     * Returns false if a request should be shed: the data worker for its key is too far
+     * behind, or its entry server has sent more than its share lately. Replies and
+     * requests coming back to their entry server are always let in, they finish work
+     * already under way.
+     */
+    private boolean admit(Message message) {
+        String command = message.getCommand();
+        if (!(command.equals("lookup") || command.equals("insert") || command.equals("delete")
+                || command.equals("cas") || command.equals("renew") || command.equals("rlookup"))
+                || isOwnRequest(message)) {
+            return true;
+        }
+
+        return dataWorkers[message.getKey() % DATA_WORKERS].getQueue().size() < DATA_QUEUE_LIMIT
+                && sourceLimiter.tryAcquire(new InetSocketAddress(message.getReplyAddr(), message.getReplyPort()));
+    }
+
+    /*
+     * Returns true for lookup/insert/delete requests, their replies and changes to
+     * watched keys.
+     */
+    private static boolean isDataCommand(String command) {
+        switch (command) {
+            case "lookup":
+            case "insert":
+            case "delete":
+            case "cas":
+            case "renew":
+            case "rlookup":
+            case "lookup_found":
+            case "insert_found":
+            case "delete_found":
+            case "cas_found":
+            case "renew_found":
+            case "rlookup_found":
+            case "busy":
+            case "watch_event":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Accepts connections from other servers. Nothing is read here, each connection is handed
+     * to the control pool as it is accepted, so a slow sender never holds up the next one.
+     */
     private void acceptConnections() {
-        while (true) {
+        while (!incomingSocket.isClosed()) {
             Socket sock = null;
-            ObjectInputStream inputStream = null;
-            ObjectOutputStream outputStream = null;
 
             try {
                 sock = incomingSocket.accept();
-                inputStream = new ObjectInputStream(sock.getInputStream());
-                outputStream = new ObjectOutputStream(sock.getOutputStream());
-
-                String command = inputStream.readUTF();
-                handleCommand(command, inputStream, outputStream);
-            } catch (IOException e) {
-                System.err.println("[ERROR] New connection failed.");
+                final Socket accepted = sock;
+                controlWorkers.execute(() -> readConnection(accepted));
+
+                // Closed by the control worker
+                sock = null;
+            } catch (IOException | RejectedExecutionException e) {
+                // Closed on shutdown
+                if (!incomingSocket.isClosed()) System.err.println("[ERROR] New connection failed.");
             } finally {
-                try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
-                try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
                 try { if (sock != null) sock.close(); } catch (IOException e) { }
             }
         }
     }
 
     /*
-     * Returns a space separated String of ints.
+     * Reads the command of a connection from another server, which has to arrive within
+     * COMMAND_TIMEOUT_MS. Data messages are handed to the data readers along with the
+     * connection, other commands are handled here on the control pool.
      */
-    private String visitedToString(final int[] visitedServers) {
-        StringBuilder visitedString = new StringBuilder("");
-        visitedString.ensureCapacity(visitedServers.length * 2 + 1);
+    private void readConnection(Socket sock) {
+        ObjectInputStream inputStream = null;
+        boolean handedOff = false;
 
-        for (int id : visitedServers) {
-            visitedString.append(id);
-            visitedString.append(" ");
-        }
-        visitedString.deleteCharAt(visitedString.length() - 1);
+        try {
+            sock.setSoTimeout(COMMAND_TIMEOUT_MS);
+            inputStream = new ObjectInputStream(sock.getInputStream());
+            String command = inputStream.readUTF();
+            sock.setSoTimeout(0);
+
+            if (isDataCommand(command) || command.equals("batch")) {
+                final ObjectInputStream dataStream = inputStream;
+                dataReaders.execute(() -> readData(command, dataStream, sock));
 
-        return visitedString.toString();
+                // Closed by the data reader, or the data worker it hands a large value to
+                handedOff = true;
+            } else {
+                handleCommand(command, inputStream, sock);
+            }
+        } catch (IOException | RejectedExecutionException e) {
+            System.err.println("[ERROR] Problem occurred when reading the command of a new connection.");
+        } finally {
+            if (!handedOff) {
+                try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
+                try { sock.close(); } catch (IOException e) { }
+            }
+        }
     }
 
-    private String buildLogMessage(String command, int key, int[] visitedServers) {
-        return buildLogMessage(command, key, null, visitedServers);
+    private String buildLogMessage(String command, int key, HopTrace trace) {
+        return buildLogMessage(command, key, null, trace);
     }
 
-    private String buildLogMessage(String command, int key, String value, int[] visitedServers) {
+    private String buildLogMessage(String command, int key, String value, HopTrace trace) {
         final String LOG = "[LOG]: ";
         final String TAB = "\t";
 
@@ -638,11 +3000,71 @@ public class NameServer implements Runnable {
         if (value != null) {
             logMessage += value + TAB;
         }
-        logMessage += visitedToString(visitedServers) + "\n";
+        if (trace != null) {
+            logMessage += trace;
+        }
+        logMessage += "\n";
 
         return logMessage;
     }
 
+    /*
+     * Reads a data message, or a batch of them, off a connection whose command was read
+     * by the accepting thread, and queues each on the data worker for its key.
+     */
+    private void readData(String command, ObjectInputStream inputStream, Socket sock) {
+        boolean handedOff = false;
+
+        try {
+            if (command.equals("batch")) {
+                // Messages another server queued for this one, see OutboundLinks
+                for (int i = 0, n = inputStream.readInt(); i < n; i++) {
+                    dispatchMessage(Message.read(inputStream.readUTF(), inputStream));
+                }
+                return;
+            }
+
+            Message message = Message.read(command, inputStream);
+            if (!message.isStreamed()) {
+                dispatchMessage(message);
+            } else if (!admit(message)) {
+                // Entry server tells the client to back off, the value is dropped with the
+                // connection
+                replyToRequest(message, "busy", null);
+            } else {
+                // Large value still on the connection, the data worker reads or relays it
+                dataWorkers[message.getKey() % DATA_WORKERS].execute(() -> {
+                    try {
+                        handleStreamedMessage(message, inputStream);
+                    } finally {
+                        try { inputStream.close(); } catch (IOException e) { }
+                        try { sock.close(); } catch (IOException e) { }
+                    }
+                });
+                handedOff = true;
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR] Problem occurred when reading a data message.");
+        } finally {
+            if (!handedOff) {
+                try { inputStream.close(); } catch (IOException e) { }
+                try { sock.close(); } catch (IOException e) { }
+            }
+        }
+    }
+
+    /*
+     * Queues a data message read whole on the data worker for its key, or answers it
+     * "busy" if it is turned away (the entry server then tells its client to back off).
+     */
+    private void dispatchMessage(Message message) {
+        if (!admit(message)) {
+            replyToRequest(message, "busy", null);
+        } else {
+            dataWorkers[message.getKey() % DATA_WORKERS].execute(() -> handleMessage(message));
+        }
+    }
+
     /*
      * Checks if an index is between (inclusive) the given range; range can overflow past
      * MAX_OBJECT_COUNT.
@@ -658,8 +3080,74 @@ public class NameServer implements Runnable {
         }
     }
 
-    public void shutdown() {
-        // TODO
+    /*
+     * Returns true if index is within range of possible keys.
+     */
+    private boolean rangeCheck(int key) {
+        return key >= 0 && key < MAX_OBJECT_AMOUNT;
+    }
+
+    /*
+     * Leaves the system without failing requests already under way. Clients get their
+     * replies to the requests already read, then their connections are closed so they
+     * send the rest through another server. Requests sent into the system from here are
+     * waited for, then the keys go to the successor as on exit(). Requests still reaching
+     * this name server after that are passed on for HANDOFF_LINGER_MS before it stops.
+     * If the successor does not take the keys, the name server keeps running with them,
+     * clients included, and false is returned.
+     * CALLED BY NAME SERVER UI.
+     */
+    public boolean shutdown() {
+        synchronized (this) {
+            if (isShutdown) {
+                return true;
+            }
+            isShutdown = true;
+        }
+        long drainedBy = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+
+        if (clientServer != null) clientServer.shutdown(DRAIN_TIMEOUT_MS);
+        try {
+            while (!pendingRequests.isEmpty() && System.currentTimeMillis() < drainedBy) {
+                Thread.sleep(10);
+            }
+
+            if (connected) {
+                nameServerUI.printMessage(exit());
+                if (connected) {
+                    // Stopping now would lose every key in the range
+                    resumeAfterFailedShutdown();
+                    return false;
+                }
+                Thread.sleep(HANDOFF_LINGER_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try { if (incomingSocket != null) incomingSocket.close(); } catch (IOException e) { }
+        antiEntropy.shutdownNow();
+        expiryTimer.shutdownNow();
+        requestTimer.shutdownNow();
+        controlWorkers.shutdown();
+        dataReaders.shutdown();
+        for (ThreadPoolExecutor dataWorker : dataWorkers) {
+            dataWorker.shutdown();
+        }
+        links.shutdown();
+        return true;
+    }
+
+    /*
+     * Serves clients again after a shutdown whose hand-off failed.
+     */
+    private void resumeAfterFailedShutdown() {
+        nameServerUI.printMessage("[ERROR] Shutdown stopped, this name server keeps running with its keys.");
+        if (clientPort != 0) {
+            clientServer = new ClientServer(this, clientPort);
+            new Thread(clientServer).start();
+        }
+        isShutdown = false;
     }
 
     @Override
@@ -667,8 +3155,21 @@ public class NameServer implements Runnable {
         nameServerUI = new NameServerUI(this, nameServerID);
         new Thread(nameServerUI).start();
 
+        if (clientPort != 0) {
+            clientServer = new ClientServer(this, clientPort);
+            new Thread(clientServer).start();
+        }
+
+        antiEntropy.scheduleWithFixedDelay(this::syncWithPredecessor, ANTI_ENTROPY_INTERVAL_MS,
+                ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        antiEntropy.scheduleWithFixedDelay(this::renewWatches, ANTI_ENTROPY_INTERVAL_MS,
+                ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        antiEntropy.scheduleWithFixedDelay(this::renewIndex, ANTI_ENTROPY_INTERVAL_MS,
+                ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        expiryTimer.scheduleAtFixedRate(this::expireKeys, EXPIRY_TICK_MS, EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
+
         try {
-            incomingSocket = new ServerSocket(nameServerPort);
+            incomingSocket = new ServerSocket(nameServerPort, ACCEPT_BACKLOG);
             acceptConnections();
         } catch (IOException e) {
             System.err.println("[ERROR] Unable to create server socket.");
@@ -1,5 +1,9 @@
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 public class NameServerDriver {
@@ -9,12 +13,34 @@ public class NameServerDriver {
         Scanner configScanner = new Scanner(config);
         int nameServerID = Integer.parseInt(configScanner.nextLine());
         int nameServerPort = Integer.parseInt(configScanner.nextLine());
-        String bootstrapServerAddr = configScanner.next();
-        int bootstrapServerPort = configScanner.nextInt();
+
+        // Collect seed servers, one "address port" pair per line
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        while (configScanner.hasNext()) {
+            String seedAddr = configScanner.next();
+            int seedPort = configScanner.nextInt();
+            seeds.add(new InetSocketAddress(seedAddr, seedPort));
+        }
 
         configScanner.close();
 
-        NameServer nameServer = new NameServer(nameServerID, nameServerPort, bootstrapServerAddr, bootstrapServerPort);
+        // Optional port for remote clients
+        int clientPort = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+        // Optional flags: values are kept on the heap unless "offheap" or "disk" is given,
+        // only published to the reverse index with "index", and lookups are hedged with "hedge"
+        List<String> flags = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : List.of();
+        ObjectStore objects;
+        if (flags.contains("disk")) {
+            objects = new LsmObjectStore(NameServer.MAX_OBJECT_AMOUNT);
+        } else if (flags.contains("offheap")) {
+            objects = new OffHeapObjectStore(NameServer.MAX_OBJECT_AMOUNT);
+        } else {
+            objects = new HeapObjectStore();
+        }
+
+        NameServer nameServer = new NameServer(nameServerID, nameServerPort, clientPort, seeds, objects,
+                flags.contains("index"), flags.contains("hedge"));
         new Thread(nameServer).start();
     }
 }
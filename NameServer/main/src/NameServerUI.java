@@ -1,3 +1,4 @@
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class NameServerUI implements Runnable {
@@ -5,10 +6,12 @@ public class NameServerUI implements Runnable {
 
     private NameServer nameServer;
     private Scanner scan;
+    private boolean trace; // Track visited servers on requests sent from the UI
 
     public NameServerUI(NameServer nameServer, int nameServerID) {
         this.nameServer = nameServer;
         scan = new Scanner(System.in);
+        trace = true;
         PROMPT = "name server [" + nameServerID + "] >_ ";
     }
 
@@ -37,13 +40,13 @@ public class NameServerUI implements Runnable {
 
     private boolean readUserInput() {
         syncPrint(PROMPT);
-        String[] input = scan.nextLine().split(" ");
+        // Values are the rest of the line, spaces included
+        String[] input = scan.nextLine().split(" ", 3);
         String command = input[0].toLowerCase();
 
         if (command.equals("quit")) {
-            nameServer.exit();
-            nameServer.shutdown();
-            return false;
+            // Keeps reading commands if the keys could not be handed off
+            return !nameServer.shutdown();
         } else if (command.equals("enter")) {
             String message = nameServer.enter();
             if (message != null) {
@@ -54,6 +57,59 @@ public class NameServerUI implements Runnable {
             if (message != null) {
                 syncPrint(message + "\n");
             }
+        } else if (command.equals("lookup")) {
+            if (input.length != 2) {
+                syncPrint("[ERROR] lookup <key>\n");
+            } else {
+                int key = Integer.parseInt(input[1]);
+
+                String message = nameServer.lookupKey(key, trace);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("insert")) {
+            if (input.length != 3) {
+                syncPrint("[ERROR] insert <key> <value>\n");
+            } else {
+                int key = Integer.parseInt(input[1]);
+                byte[] value = input[2].getBytes(StandardCharsets.UTF_8);
+
+                String message = nameServer.insertValue(key, value, trace);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("delete")) {
+            if (input.length != 2) {
+                syncPrint("[ERROR] delete <key>\n");
+            } else {
+                int key = Integer.parseInt(input[1]);
+
+                String message = nameServer.deleteKey(key, trace);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("rlookup")) {
+            if (input.length < 2) {
+                syncPrint("[ERROR] rlookup <value>\n");
+            } else {
+                String text = input.length == 3 ? input[1] + " " + input[2] : input[1];
+                byte[] value = text.getBytes(StandardCharsets.UTF_8);
+
+                String message = nameServer.lookupValue(value, trace);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("stats")) {
+            syncPrint(nameServer.ringStats());
+        } else if (command.equals("load")) {
+            if (input.length != 2) {
+                syncPrint("[ERROR] load <file>\n");
+            } else {
+                String message = nameServer.loadFile(input[1]);
+                if (message != null) syncPrint(message + "\n");
+            }
+        } else if (command.equals("trace")) {
+            if (input.length != 2 || !(input[1].equals("on") || input[1].equals("off"))) {
+                syncPrint("[ERROR] trace <on|off>\n");
+            } else {
+                trace = input[1].equals("on");
+            }
         } else {
             syncPrint("[ERROR] Unknown command.\n");
         }
@@ -0,0 +1,191 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * Data messages to other servers, queued per destination (link) and sent together in
+ * "batch" frames rather than a connection and a few small writes each.
+ *
+ * A link's queue is sent once it holds maxMessages or maxBytes, or lingerMicros after its
+ * first message was queued. Only one frame per link is written at a time; messages queued
+ * meanwhile go out in the next frame as soon as it is done, so under load frames fill up
+ * on their own. Frames are written through a buffer, so a frame is one write on the
+ * socket. Messages with values too long to be read whole (over Message.STREAM_THRESHOLD)
+ * get a connection of their own, in their place in the queue.
+ *
+ * Frame: "batch" | int message amount | messages, each written by Message.write()
+ */
+public class OutboundLinks {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Message size besides its value, roughly
+    private static final int HEADER_BYTES = 64;
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long lingerMicros;
+    private final Consumer<Message> onFailure;
+
+    private final ConcurrentHashMap<InetSocketAddress, Link> links = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService writers = Executors.newCachedThreadPool();
+
+    private static class Link {
+        private final InetSocketAddress addr;
+        private List<Message> queued = new ArrayList<>();
+        private int queuedBytes;
+        private boolean writing; // A frame is being written, or about to be
+        private boolean lingering; // A send after lingerMicros is scheduled
+
+        private Link(InetSocketAddress addr) {
+            this.addr = addr;
+        }
+    }
+
+    /*
+     * onFailure is called with every message of a frame that could not be written.
+     */
+    public OutboundLinks(int maxMessages, int maxBytes, long lingerMicros, Consumer<Message> onFailure) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.lingerMicros = lingerMicros;
+        this.onFailure = onFailure;
+    }
+
+    /*
+     * Queues a message for the server at addr.
+     */
+    public void send(Message message, InetSocketAddress addr) {
+        Link link = links.computeIfAbsent(addr, Link::new);
+
+        synchronized (link) {
+            link.queued.add(message);
+            link.queuedBytes += HEADER_BYTES + Math.max(0, message.getValueLength());
+            if (link.writing) {
+                // Goes out with the next frame
+                return;
+            }
+
+            if (link.queued.size() < maxMessages && link.queuedBytes < maxBytes) {
+                if (!link.lingering) {
+                    link.lingering = true;
+                    try {
+                        lingerTimer.schedule(() -> linger(link), lingerMicros, TimeUnit.MICROSECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // Shut down, sent below
+                        link.lingering = false;
+                    }
+                }
+                if (link.lingering) return;
+            }
+            link.writing = true;
+        }
+        write(link);
+    }
+
+    private void linger(Link link) {
+        synchronized (link) {
+            link.lingering = false;
+            if (link.writing || link.queued.isEmpty()) {
+                return;
+            }
+            link.writing = true;
+        }
+        write(link);
+    }
+
+    private void write(Link link) {
+        try {
+            writers.execute(() -> writeQueued(link));
+        } catch (RejectedExecutionException e) {
+            // Shut down, written by the caller instead
+            writeQueued(link);
+        }
+    }
+
+    /*
+     * Writes the link's queue, then what was queued meanwhile, until it is empty.
+     */
+    private void writeQueued(Link link) {
+        while (true) {
+            List<Message> frame;
+            synchronized (link) {
+                if (link.queued.isEmpty()) {
+                    link.writing = false;
+                    return;
+                }
+                frame = link.queued;
+                link.queued = new ArrayList<>();
+                link.queuedBytes = 0;
+            }
+
+            // Runs of messages read whole by the receiver share a frame
+            List<Message> run = new ArrayList<>();
+            for (Message message : frame) {
+                if (message.getValueLength() > Message.STREAM_THRESHOLD) {
+                    writeFrame(link.addr, run);
+                    run.clear();
+                    writeFrame(link.addr, List.of(message));
+                } else {
+                    run.add(message);
+                }
+            }
+            writeFrame(link.addr, run);
+        }
+    }
+
+    private void writeFrame(InetSocketAddress addr, List<Message> frame) {
+        if (frame.isEmpty()) {
+            return;
+        }
+
+        Socket socket = null;
+        ObjectOutputStream outputStream = null;
+
+        try {
+            socket = new Socket(addr.getAddress(), addr.getPort());
+            outputStream = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+
+            if (frame.size() == 1) {
+                frame.get(0).write(outputStream);
+            } else {
+                outputStream.writeUTF("batch");
+                outputStream.writeInt(frame.size());
+                for (Message message : frame) {
+                    message.write(outputStream);
+                }
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            frame.forEach(onFailure);
+        } finally {
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { if (socket != null) socket.close(); } catch (IOException e) { }
+        }
+    }
+
+    /*
+     * Sends what is still queued and stops the link threads once it is written.
+     */
+    public void shutdown() {
+        lingerTimer.shutdown();
+        try {
+            lingerTimer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writers.shutdown();
+    }
+}
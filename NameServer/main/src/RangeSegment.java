@@ -0,0 +1,76 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * A range of keys written to a file in the store's raw range format, so it can be sent
+ * to a new name server with FileChannel.transferTo (sendfile) instead of being copied
+ * through an object stream.
+ *
+ * The segment is sent as raw bytes after the object stream header fields have been
+ * flushed. The receiver reads the header fields through its ObjectInputStream, which
+ * never reads past the last flushed block, then reads the entries straight off the
+ * socket with load().
+ */
+public class RangeSegment {
+
+    private final Path file;
+    private final long length;
+
+    private RangeSegment(Path file, long length) {
+        this.file = file;
+        this.length = length;
+    }
+
+    /*
+     * Writes the (exclusive, inclusive) range of keys to a new temporary segment file.
+     */
+    public static RangeSegment write(ObjectStore objects, int rangeStart, int rangeEnd) throws IOException {
+        Path file = Files.createTempFile("range-" + rangeStart + "-" + rangeEnd + "-", ".seg");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            objects.writeRange(out, rangeStart, rangeEnd);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        return new RangeSegment(file, Files.size(file));
+    }
+
+    /*
+     * Sends the whole segment to target, letting the kernel copy it from the file.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long sent = 0; sent < length; ) {
+                sent += channel.transferTo(sent, length - sent, target);
+            }
+        }
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not delete range segment " + file + ".");
+        }
+    }
+
+    /*
+     * Stores the entries of a segment sent with transferTo(), reading them straight from
+     * the connection's raw input stream. listener follows them as they are stored.
+     */
+    public static void load(ObjectStore objects, InputStream in, ObjectStore.EntryListener listener)
+            throws IOException {
+        objects.readEntries(new DataInputStream(new BufferedInputStream(in)), listener);
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.Arrays;
+
+/*
+ * When a server sends a request it entered into the system again, and whether it may.
+ *
+ * Hedges go out once a request has waited longer than 95% of recent requests did (the
+ * 95th percentile of the last WINDOW reply latencies, never below minHedgeMillis), as it
+ * is then likely stuck behind a slow server or lost on the way.
+ *
+ * Every retry or hedge is paid for out of a budget, so they cannot pile onto a system
+ * that is slow because it is overloaded. Each request sent adds ratio of a retry to the
+ * budget, up to maxBalance, and the budget also fills by minPerSecond retries a second so
+ * a server sending few requests can still retry some.
+ */
+public class RetryPolicy {
+
+    // Number of recent latencies the percentile is taken from, and how many new ones
+    // are recorded before it is worked out again
+    private static final int WINDOW = 1024;
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private final long minHedgeMillis;
+    private final double ratio;
+    private final double minPerMilli;
+    private final double maxBalance;
+
+    private final long[] latencies = new long[WINDOW]; // Microseconds, oldest overwritten first
+    private int recorded;
+    private long hedgeMillis;
+
+    private double balance;
+    private long filledAt = System.currentTimeMillis();
+
+    public RetryPolicy(long minHedgeMillis, double ratio, double minPerSecond, double maxBalance) {
+        this.minHedgeMillis = minHedgeMillis;
+        this.ratio = ratio;
+        this.minPerMilli = minPerSecond / 1000;
+        this.maxBalance = maxBalance;
+        this.hedgeMillis = minHedgeMillis;
+        this.balance = maxBalance;
+    }
+
+    /*
+     * Records how long a request took to be answered.
+     */
+    public synchronized void recordLatency(long nanos) {
+        latencies[recorded % WINDOW] = nanos / 1000;
+        recorded++;
+
+        if (recorded % RECOMPUTE_EVERY == 0) {
+            long[] window = Arrays.copyOf(latencies, Math.min(recorded, WINDOW));
+            Arrays.sort(window);
+            long p95 = window[(int) (window.length * 0.95)] / 1000;
+            hedgeMillis = Math.max(minHedgeMillis, p95);
+        }
+    }
+
+    /*
+     * Returns how long a request is waited for before it is hedged.
+     */
+    public synchronized long hedgeMillis() {
+        return hedgeMillis;
+    }
+
+    /*
+     * Adds a request sent to the budget.
+     */
+    public synchronized void deposit() {
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /*
+     * Takes a retry out of the budget. Returns false if there is none left.
+     */
+    public synchronized boolean tryRetry() {
+        long now = System.currentTimeMillis();
+        if (now > filledAt) {
+            balance = Math.min(maxBalance, balance + (now - filledAt) * minPerMilli);
+            filledAt = now;
+        }
+
+        if (balance < 1) {
+            return false;
+        }
+        balance--;
+        return true;
+    }
+}
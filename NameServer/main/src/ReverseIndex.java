@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjLongConsumer;
+
+/*
+ * The part of the reverse index, value to keys, held by a server. The index is
+ * partitioned by value: the entries for a value belong to the server owning its slot, a
+ * hash of the value in the same range as keys, so reverse lookups are routed like any
+ * other request for that slot.
+ *
+ * Entries hold a digest of the value (a 64-bit FNV-1a hash, the slot being taken from
+ * it) rather than the value itself, so they are the same small size whatever the value.
+ * The keys found for a value are therefore only candidates: one may hold another value
+ * with the same digest, or its value may have changed since the entry was published.
+ * The server a reverse lookup entered through confirms them by looking each one up.
+ *
+ * Entries are published by the owner of their key whenever the key changes and stay for
+ * leaseMillis after they were last published; owners publish their keys' entries again
+ * periodically, from the digests they keep. Entries of a key that changed while its
+ * removal got lost, or whose key moved to another server, therefore go away on their own.
+ * As with watches, a server holding entries for slots it no longer owns after a range
+ * moved routes them on again.
+ */
+public class ReverseIndex {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long leaseMillis;
+
+    // Keys holding a value with each digest, with the time each entry expires
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Integer, Long>> entries = new ConcurrentHashMap<>();
+
+    /*
+     * A key holding a value with the given digest.
+     */
+    public static class Entry {
+        private final long digest;
+        private final int key;
+
+        public Entry(long digest, int key) {
+            this.digest = digest;
+            this.key = key;
+        }
+
+        public long getDigest() {
+            return digest;
+        }
+
+        public int getKey() {
+            return key;
+        }
+
+        public void write(ObjectOutputStream out) throws IOException {
+            out.writeInt(key);
+            out.writeLong(digest);
+        }
+
+        public static Entry read(ObjectInputStream in) throws IOException {
+            int key = in.readInt();
+            return new Entry(in.readLong(), key);
+        }
+    }
+
+    public ReverseIndex(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /*
+     * Returns the digest of a value, never 0 so 0 can stand for no value.
+     */
+    public static long digest(byte[] value) {
+        return finish(digest(FNV_OFFSET, value, 0, value.length));
+    }
+
+    private static long digest(long hash, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long finish(long hash) {
+        return hash != 0 ? hash : 1;
+    }
+
+    /*
+     * Returns the slot of a value with the given digest, between 0 and slotAmount - 1.
+     */
+    public static int slot(long digest, int slotAmount) {
+        return (int) Math.floorMod(digest, (long) slotAmount);
+    }
+
+    /*
+     * Returns a listener for ObjectStore.readEntries() that digests the value of each
+     * VersionedValue record as it is copied in, and hands it to digested with its key.
+     */
+    public static ObjectStore.EntryListener digester(ObjLongConsumer<Integer> digested) {
+        return new ObjectStore.EntryListener() {
+            private int key;
+            private int position;
+            private long hash;
+
+            @Override
+            public void start(int key, int length) {
+                this.key = key;
+                position = 0;
+                hash = FNV_OFFSET;
+            }
+
+            @Override
+            public void bytes(byte[] chunk, int offset, int length) {
+                // Skip what is left of the record's header
+                int skipped = Math.max(0, Math.min(length, VersionedValue.HEADER_BYTES - position));
+                hash = digest(hash, chunk, offset + skipped, length - skipped);
+                position += length;
+            }
+
+            @Override
+            public void end() {
+                if (position >= VersionedValue.HEADER_BYTES) digested.accept(key, finish(hash));
+            }
+        };
+    }
+
+    /*
+     * Adds an entry, or extends its lease if it is held already.
+     */
+    public void renew(Entry entry) {
+        long expiresAt = System.currentTimeMillis() + leaseMillis;
+        entries.compute(entry.getDigest(), (digest, keys) -> {
+            if (keys == null) keys = new ConcurrentHashMap<>();
+            keys.put(entry.getKey(), expiresAt);
+            return keys;
+        });
+    }
+
+    public void remove(Entry entry) {
+        entries.computeIfPresent(entry.getDigest(), (digest, keys) -> {
+            keys.remove(entry.getKey());
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /*
+     * Returns the keys holding a value with the digest, lowest first.
+     */
+    public List<Integer> keys(long digest) {
+        long now = System.currentTimeMillis();
+        Map<Integer, Long> keys = entries.get(digest);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+
+        List<Integer> found = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : keys.entrySet()) {
+            if (entry.getValue() > now) found.add(entry.getKey());
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /*
+     * Returns every entry held, dropping the expired ones.
+     */
+    public List<Entry> all() {
+        long now = System.currentTimeMillis();
+        List<Entry> all = new ArrayList<>();
+
+        for (long digest : entries.keySet()) {
+            entries.computeIfPresent(digest, (d, keys) -> {
+                keys.values().removeIf(expiresAt -> expiresAt <= now);
+                for (int key : keys.keySet()) {
+                    all.add(new Entry(d, key));
+                }
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+        return all;
+    }
+
+    /*
+     * Returns the keys of a reverse lookup reply as its value, four bytes per key.
+     */
+    public static byte[] encodeKeys(List<Integer> keys) {
+        ByteBuffer buffer = ByteBuffer.allocate(keys.size() * Integer.BYTES);
+        for (int key : keys) {
+            buffer.putInt(key);
+        }
+        return buffer.array();
+    }
+
+    public static List<Integer> decodeKeys(byte[] encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        List<Integer> keys = new ArrayList<>();
+        while (buffer.remaining() >= Integer.BYTES) {
+            keys.add(buffer.getInt());
+        }
+        return keys;
+    }
+}
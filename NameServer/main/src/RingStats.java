@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Ring-wide statistics: key counts, bytes stored, key ranges, heap usage and hottest keys
+ * of every server, gathered with "stats" requests.
+ *
+ * Servers are asked all at once rather than one after the other around the ring. The
+ * asking server starts from the servers it found on its last query (its ring view) and
+ * merges replies as they arrive. Each reply names the server's neighbours, and any
+ * neighbour not asked yet is asked right away. So a view that missed servers that have
+ * entered since is filled in while the query runs. Only a server with an empty view
+ * discovers the ring a neighbour at a time, from both directions at once.
+ */
+public class RingStats {
+
+    // How long a server has to answer before it is left out
+    private static final int TIMEOUT_MS = 2000;
+
+    // Number of hottest keys reported per server and for the whole ring
+    public static final int HOT_KEY_AMOUNT = 8;
+
+    private RingStats() {
+    }
+
+    /*
+     * What a single server holds.
+     */
+    public static class NodeStats {
+        private final int serverID;
+        private final InetAddress addr;
+        private final int port;
+        private final int rangeStart;
+        private final int rangeEnd;
+        private final int keys;
+        private final long bytes;
+        private final long heapUsed;
+        private final long heapMax;
+        private final HotKeys hot;
+        private final InetSocketAddress successor;
+        private final InetSocketAddress predecessor;
+
+        public NodeStats(int serverID, InetAddress addr, int port, int rangeStart, int rangeEnd, int keys, long bytes,
+                         HotKeys hot, InetSocketAddress successor, InetSocketAddress predecessor) {
+            this(serverID, addr, port, rangeStart, rangeEnd, keys, bytes,
+                    Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory(),
+                    Runtime.getRuntime().maxMemory(), hot, successor, predecessor);
+        }
+
+        private NodeStats(int serverID, InetAddress addr, int port, int rangeStart, int rangeEnd, int keys, long bytes,
+                          long heapUsed, long heapMax, HotKeys hot, InetSocketAddress successor,
+                          InetSocketAddress predecessor) {
+            this.serverID = serverID;
+            this.addr = addr;
+            this.port = port;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.keys = keys;
+            this.bytes = bytes;
+            this.heapUsed = heapUsed;
+            this.heapMax = heapMax;
+            this.hot = hot;
+            this.successor = successor;
+            this.predecessor = predecessor;
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(addr, port);
+        }
+
+        /*
+         * Returns the number of keys in the server's range, which can wrap around past the
+         * highest key (a server alone in the ring owns every key).
+         */
+        public int rangeSize(int keyAmount) {
+            int size = Math.floorMod(rangeEnd - rangeStart + 1, keyAmount);
+            return size == 0 ? keyAmount : size;
+        }
+
+        public void write(ObjectOutputStream out) throws IOException {
+            out.writeInt(serverID);
+            out.writeObject(addr);
+            out.writeInt(port);
+            out.writeInt(rangeStart);
+            out.writeInt(rangeEnd);
+            out.writeInt(keys);
+            out.writeLong(bytes);
+            out.writeLong(heapUsed);
+            out.writeLong(heapMax);
+            hot.write(out);
+            out.writeObject(successor.getAddress());
+            out.writeInt(successor.getPort());
+            out.writeObject(predecessor.getAddress());
+            out.writeInt(predecessor.getPort());
+        }
+
+        public static NodeStats read(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            int serverID = in.readInt();
+            InetAddress addr = (InetAddress) in.readObject();
+            int port = in.readInt();
+            int rangeStart = in.readInt();
+            int rangeEnd = in.readInt();
+            int keys = in.readInt();
+            long bytes = in.readLong();
+            long heapUsed = in.readLong();
+            long heapMax = in.readLong();
+            HotKeys hot = HotKeys.read(in);
+            InetSocketAddress successor = new InetSocketAddress((InetAddress) in.readObject(), in.readInt());
+            InetSocketAddress predecessor = new InetSocketAddress((InetAddress) in.readObject(), in.readInt());
+            return new NodeStats(serverID, addr, port, rangeStart, rangeEnd, keys, bytes, heapUsed, heapMax,
+                    hot, successor, predecessor);
+        }
+    }
+
+    /*
+     * Gathers the stats of every server in the ring, starting with the asking server's
+     * own (local) and the servers in its view. Returns them in ring order.
+     */
+    public static List<NodeStats> collect(NodeStats local, Collection<InetSocketAddress> view) {
+        List<NodeStats> nodes = new ArrayList<>();
+        Set<InetSocketAddress> asked = new HashSet<>();
+        ExecutorService askers = Executors.newCachedThreadPool();
+        CompletionService<NodeStats> replies = new ExecutorCompletionService<>(askers);
+        int outstanding = 0;
+
+        try {
+            nodes.add(local);
+            asked.add(local.getAddress());
+            List<InetSocketAddress> next = new ArrayList<>(view);
+            next.add(local.successor);
+            next.add(local.predecessor);
+
+            while (true) {
+                for (InetSocketAddress server : next) {
+                    if (asked.add(server)) {
+                        replies.submit(() -> ask(server));
+                        outstanding++;
+                    }
+                }
+                next.clear();
+                if (outstanding == 0) break;
+
+                NodeStats node;
+                try {
+                    node = replies.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    node = null;
+                }
+                outstanding--;
+
+                // Servers not (yet) in the ring answer null and are left out
+                if (node != null) {
+                    nodes.add(node);
+                    next.add(node.successor);
+                    next.add(node.predecessor);
+                }
+            }
+        } finally {
+            askers.shutdownNow();
+        }
+
+        nodes.sort(Comparator.comparingInt(node -> node.rangeEnd));
+        return nodes;
+    }
+
+    /*
+     * Asks a single server for its stats, null if it is not part of the ring.
+     */
+    private static NodeStats ask(InetSocketAddress server) throws IOException, ClassNotFoundException {
+        Socket socket = new Socket();
+        ObjectOutputStream outputStream = null;
+        ObjectInputStream inputStream = null;
+
+        try {
+            socket.connect(server, TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.writeUTF("stats");
+            outputStream.flush();
+
+            inputStream = new ObjectInputStream(socket.getInputStream());
+            return inputStream.readBoolean() ? NodeStats.read(inputStream) : null;
+        } finally {
+            try { if (inputStream != null) inputStream.close(); } catch (IOException e) { }
+            try { if (outputStream != null) outputStream.close(); } catch (IOException e) { }
+            try { socket.close(); } catch (IOException e) { }
+        }
+    }
+
+    /*
+     * Returns the merged stats as "name:value" lines, the totals first and then a line per
+     * server. Covered is the number of keys in the ranges of the servers that answered,
+     * less than keyAmount if some could not be reached. Hot keys are given as
+     * "key=requests" pairs, hottest first.
+     */
+    public static String report(List<NodeStats> nodes, int keyAmount) {
+        int keys = 0;
+        long bytes = 0;
+        int covered = 0;
+        List<HotKeys> hot = new ArrayList<>();
+        for (NodeStats node : nodes) {
+            keys += node.keys;
+            bytes += node.bytes;
+            covered += node.rangeSize(keyAmount);
+            hot.add(node.hot);
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("servers:").append(nodes.size()).append('\n');
+        report.append("keys:").append(keys).append('\n');
+        report.append("bytes:").append(bytes).append('\n');
+        report.append("covered:").append(Math.min(covered, keyAmount)).append('/').append(keyAmount).append('\n');
+        report.append("hot:").append(HotKeys.merge(hot, HOT_KEY_AMOUNT)).append('\n');
+        for (NodeStats node : nodes) {
+            report.append("server:").append(node.serverID)
+                    .append(" range:").append(node.rangeStart).append('-').append(node.rangeEnd)
+                    .append(" keys:").append(node.keys)
+                    .append(" bytes:").append(node.bytes)
+                    .append(" heap_used:").append(node.heapUsed)
+                    .append(" heap_max:").append(node.heapMax)
+                    .append(" hot:").append(node.hot).append('\n');
+        }
+        return report.toString();
+    }
+}